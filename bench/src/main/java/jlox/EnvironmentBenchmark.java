@@ -0,0 +1,70 @@
+package jlox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Variable access cost by scope depth: locals resolved to (depth, slot) and
+// globals looked up by symbol ID.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+    @Param({"0", "1", "4", "16"})
+    public int depth;
+
+    private Environment globals;
+    private Environment innermost;
+    private Token global;
+    private final Double value = 42.0;
+
+    @Setup
+    public void setup() {
+        SymbolTable symbols = new SymbolTable();
+        for (int i = 0; i < 64; i++) {
+            symbols.intern("filler" + i);
+        }
+        global = new Token(Tokentype.IDENTIFIER, "x", null, 1, symbols.intern("x"));
+        globals = new Environment();
+        globals.define(global, value);
+        // a block with three locals at every level
+        innermost = new Environment(globals, 3);
+        innermost.defineAt(2, value);
+        for (int i = 0; i < depth; i++) {
+            innermost = new Environment(innermost, 3);
+        }
+    }
+
+    @Benchmark
+    public Object getLocal() {
+        return innermost.getAt(depth, 2);
+    }
+
+    @Benchmark
+    public void assignLocal() {
+        innermost.assignAt(depth, 2, value);
+    }
+
+    @Benchmark
+    public Object getGlobal() {
+        return globals.get(global);
+    }
+
+    @Benchmark
+    public void assignGlobal() {
+        globals.assign(global, value);
+    }
+}
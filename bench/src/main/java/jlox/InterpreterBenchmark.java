@@ -0,0 +1,54 @@
+package jlox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Interpreter.interpret over already resolved workloads.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    @Param({"ARITHMETIC", "STRINGS", "NESTED_BLOCKS", "MANY_GLOBALS"})
+    public Workload workload;
+
+    @Param({"1000"})
+    public int statements;
+
+    private SymbolTable symbols;
+    private List<Stmt> program;
+    private Interpreter interpreter;
+
+    @Setup
+    public void setup() {
+        symbols = new SymbolTable();
+        program = new Parser(new Scanner(workload.source(statements), symbols)).parse();
+        new Resolver().resolve(program);
+    }
+
+    @Setup(Level.Invocation)
+    public void freshInterpreter() {
+        interpreter = new Interpreter();
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        interpreter.interpret(program);
+        return interpreter;
+    }
+}
@@ -0,0 +1,101 @@
+package jlox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A hot loop nest: an outer for loop with a block body declaring a local, an
+// inner while loop whose body recomputes an expression over variables the
+// loops never assign, and a branch. Run by the interpreter as parsed, by the
+// interpreter after the Optimizer has hoisted the invariants, by the VM, and
+// as the ClosureCompiler's lambda tree.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopBenchmark {
+    @Param({"10000"})
+    public int iterations;
+
+    private List<Stmt> program;
+    private List<Stmt> optimized;
+    private Chunk chunk;
+    private ClosureCompiler.Script closures;
+    private SymbolTable symbols;
+    private OutputSink out;
+    private Interpreter interpreter;
+    private VM vm;
+
+    static String source(int iterations) {
+        return "var n = 0;\nn = " + iterations + ";\nvar w = 3;\nw = 4;\nvar sum = 0;\n"
+                + "for (var i = 0; i < n; i = i + 1) {\n"
+                + "  var j = 0;\n"
+                + "  while (j < 10 and w > 0) {\n"
+                + "    sum = sum + (w * w + w / 2) * 2 - j;\n"
+                + "    j = j + 1;\n"
+                + "  }\n"
+                + "  if (sum > 1000000) sum = sum - 1000000; else sum = sum + i;\n"
+                + "}\n"
+                + "print sum;\n";
+    }
+
+    @Setup
+    public void setup() {
+        symbols = new SymbolTable();
+        String source = source(iterations);
+        program = new Parser(new Scanner(source, symbols)).parse();
+        new Resolver().resolve(program);
+        optimized = new Optimizer().optimize(new Parser(new Scanner(source, symbols)).parse());
+        new Resolver().resolve(optimized);
+        List<Stmt> compiled = new Parser(new Scanner(source, symbols)).parse();
+        new Resolver().resolve(compiled);
+        chunk = new Compiler().compile(compiled);
+        closures = ClosureCompiler.compile(program);
+        out = new OutputSink(OutputStream.nullOutputStream(), OutputSink.FlushPolicy.SIZE);
+    }
+
+    @Setup(Level.Invocation)
+    public void freshRuntime() {
+        interpreter = new Interpreter(out);
+        vm = new VM(symbols, out, ErrorReporter.STDERR);
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        interpreter.interpret(program);
+        return interpreter;
+    }
+
+    @Benchmark
+    public Interpreter interpretOptimized() {
+        interpreter.interpret(optimized);
+        return interpreter;
+    }
+
+    @Benchmark
+    public Interpreter closures() {
+        closures.run(interpreter.globals, out);
+        return interpreter;
+    }
+
+    @Benchmark
+    public VM vm() {
+        vm.interpret(chunk);
+        return vm;
+    }
+}
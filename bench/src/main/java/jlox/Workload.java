@@ -0,0 +1,82 @@
+package jlox;
+
+// Synthetic Lox programs the benchmarks run on. Each one ends with a single
+// print so the interpreter benchmarks don't measure console output.
+public enum Workload {
+    // long arithmetic expressions over a handful of globals
+    ARITHMETIC {
+        @Override
+        void statement(StringBuilder out, int i) {
+            out.append("x = (x * 3 + ").append(i % 97).append(") / 2 - y * (z - ")
+                    .append(i % 13).append(") + -x / 7;\n");
+        }
+    },
+    // every precedence level in one statement, plus operands that are lone
+    // literals, so parsing is dominated by walking the operator grammar
+    EXPRESSIONS {
+        @Override
+        void statement(StringBuilder out, int i) {
+            out.append("x = x + ").append(i % 89).append(" * -y >= z - 1 == !(y < z / 2) != ")
+                    .append(i % 7).append(" <= 3;\nx = 1;\n");
+        }
+    },
+    // string literals and concatenation
+    STRINGS {
+        @Override
+        void statement(StringBuilder out, int i) {
+            out.append("s = \"item").append(i % 50).append("\" + \", \" + t;\n");
+        }
+    },
+    // statements wrapped in blocks that declare and read locals several scopes out
+    NESTED_BLOCKS {
+        @Override
+        void statement(StringBuilder out, int i) {
+            out.append("{ var a = ").append(i % 10).append("; { var b = a + 1; { var c = a * b; x = c + b - a; } } }\n");
+        }
+    },
+    // one global per statement, each reading the one before
+    MANY_GLOBALS {
+        @Override
+        void statement(StringBuilder out, int i) {
+            out.append("var g").append(i).append(" = ")
+                    .append(i == 0 ? "x" : "g" + (i - 1)).append(" + 1;\n");
+        }
+    },
+    // identifier-heavy text, including names that start like keywords
+    IDENTIFIERS {
+        private final String[] names = {"alpha", "beta", "forward", "thistle", "variable",
+                "whiles", "nilly", "orbit", "printer", "returned"};
+
+        @Override
+        void statement(StringBuilder out, int i) {
+            String a = names[i % names.length];
+            String b = names[(i * 7 + 3) % names.length];
+            out.append(a).append(" = ").append(b).append(" + ").append(a)
+                    .append(" * ").append(b).append(";\n");
+        }
+
+        @Override
+        void prologue(StringBuilder out) {
+            super.prologue(out);
+            for (String name : names) {
+                out.append("var ").append(name).append(" = 1;\n");
+            }
+        }
+    };
+
+    abstract void statement(StringBuilder out, int i);
+
+    void prologue(StringBuilder out) {
+        out.append("var x = 1;\nvar y = 2;\nvar z = 3;\nvar s = \"\";\nvar t = \"tail\";\n");
+    }
+
+    String source(int statements) {
+        StringBuilder out = new StringBuilder();
+        prologue(out);
+        for (int i = 0; i < statements; i++) {
+            statement(out, i);
+        }
+        out.append("print x;\n");
+        return out.toString();
+    }
+}
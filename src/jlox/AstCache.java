@@ -0,0 +1,485 @@
+package jlox;
+// On-disk cache of parsed scripts, keyed by the SHA-256 of the source bytes.
+// Entries hold the tree as it comes out of the Parser; the Optimizer and
+// Resolver still run on whatever is loaded.
+//
+// entry  → header body-length body-crc32 body
+// header → MAGIC VERSION Expr.SHAPE Stmt.SHAPE tokentypes-hash
+// body   → stmt-count stmt*
+// Strings are written once (length-prefixed UTF-8) and referred to by index
+// after that; counts, lines, indexes and whole numbers are varints. Tokens
+// in the tree never carry a literal, so none is written for them.
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+class AstCache {
+    private static final int MAGIC=0x4C4F5841;
+    // bump when the encoding below changes
+    private static final int VERSION=3;
+    private static final int TOKENTYPES=Arrays.toString(Tokentype.values()).hashCode();
+
+    private static final byte BLOCK=0, EXPRESSION=1, PRINT=2, VAR=3, IF=4, WHILE=5;
+    private static final byte ASSIGN=0, BINARY=1, GROUPING=2, LITERAL=3, UNARY=4, VARIABLE=5, LOGICAL=6;
+    private static final byte NIL=0, TRUE=1, FALSE=2, NUMBER=3, STRING=4, INTEGER=5;
+
+    // bytes before the body length
+    private static final int HEADER=20;
+
+    private final Path directory;
+
+    AstCache(Path directory){
+        this.directory=directory;
+    }
+
+    static String key(ByteBuffer source){
+        try {
+            MessageDigest digest=MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            StringBuilder key=new StringBuilder();
+            for (byte b:digest.digest()){
+                key.append(Character.forDigit((b>>4)&0xf,16)).append(Character.forDigit(b&0xf,16));
+            }
+            return key.toString();
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // null when there is no usable entry; stale or damaged entries count as missing
+    List<Stmt> load(String key,SymbolTable symbols){
+        Path path=directory.resolve(key+".ast");
+        try (DataInputStream in=new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))){
+            if (in.readInt()!=MAGIC || in.readInt()!=VERSION || in.readInt()!=Expr.SHAPE
+                    || in.readInt()!=Stmt.SHAPE || in.readInt()!=TOKENTYPES){
+                return null;
+            }
+            int length=in.readInt();
+            int crc=in.readInt();
+            // checked against the file before it is trusted with an allocation
+            if (length<0 || length!=Files.size(path)-HEADER-8){
+                return null;
+            }
+            byte[] body=new byte[length];
+            in.readFully(body);
+            if (crc(body)!=crc){
+                return null;
+            }
+            return new Reader(new DataInputStream(new ByteArrayInputStream(body)),symbols,length).statements();
+        }catch (IOException|RuntimeException e){
+            return null;
+        }
+    }
+
+    private static int crc(byte[] bytes){
+        CRC32 crc=new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    void store(String key,List<Stmt> statements)throws IOException{
+        Files.createDirectories(directory);
+        Path temp=Files.createTempFile(directory,key,".tmp");
+        try {
+            ByteArrayOutputStream body=new ByteArrayOutputStream();
+            try (DataOutputStream out=new DataOutputStream(body)){
+                new Writer(out).statements(statements);
+            }
+            byte[] bytes=body.toByteArray();
+            try (DataOutputStream out=new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))){
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(Expr.SHAPE);
+                out.writeInt(Stmt.SHAPE);
+                out.writeInt(TOKENTYPES);
+                out.writeInt(bytes.length);
+                out.writeInt(crc(bytes));
+                out.write(bytes);
+            }
+            Files.move(temp,directory.resolve(key+".ast"),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        }finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static class Writer implements Expr.Visitor<Void>,Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        private final Map<String,Integer> strings=new HashMap<>();
+
+        Writer(DataOutputStream out){
+            this.out=out;
+        }
+
+        void statements(List<Stmt> statements){
+            varint(statements.size());
+            for (Stmt statement:statements){
+                statement.accept(this);
+            }
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch==null){
+                tag((byte) 0);
+            }else {
+                tag((byte) 1);
+                stmt.elseBranch.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            optional(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            expr.left.accept(this);
+            token(expr.operator);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expr.expression.accept(this);
+            return null;
+        }
+
+        // only made by the Optimizer, which runs after the cache
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            literal(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            expr.left.accept(this);
+            token(expr.operator);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            return null;
+        }
+
+        private void optional(Expr expr){
+            if (expr==null){
+                tag((byte) 0);
+                return;
+            }
+            tag((byte) 1);
+            expr.accept(this);
+        }
+
+        private void token(Token token){
+            varint(token.type.ordinal());
+            string(token.lexeme);
+            varint(token.line);
+            varint(token.column);
+        }
+
+        private void literal(Object value){
+            if (value==null){
+                tag(NIL);
+            }else if (value instanceof Boolean){
+                tag((Boolean) value ? TRUE : FALSE);
+            }else if (value instanceof Double){
+                double number=(Double) value;
+                long integral=(long) number;
+                if (integral==number && Math.abs(number)<0x1p53
+                        && Double.doubleToRawLongBits(number)!=Double.doubleToRawLongBits(-0.0)){
+                    tag(INTEGER);
+                    varlong((integral<<1)^(integral>>63));
+                }else {
+                    tag(NUMBER);
+                    write(()->out.writeDouble(number));
+                }
+            }else {
+                tag(STRING);
+                string(value.toString());
+            }
+        }
+
+        private void string(String value){
+            Integer index=strings.get(value);
+            if (index!=null){
+                varint(index+1);
+                return;
+            }
+            strings.put(value,strings.size());
+            varint(0);
+            byte[] bytes=value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            write(()->out.write(bytes));
+        }
+
+        private void tag(byte tag){
+            write(()->out.writeByte(tag));
+        }
+
+        private void varint(int value){
+            varlong(value&0xffffffffL);
+        }
+
+        private void varlong(long value){
+            write(()->{
+                long rest=value;
+                while ((rest&~0x7fL)!=0){
+                    out.writeByte((int) (rest&0x7f)|0x80);
+                    rest>>>=7;
+                }
+                out.writeByte((int) rest);
+            });
+        }
+
+        private interface IoAction{
+            void run()throws IOException;
+        }
+
+        // the visitor methods can't throw IOException, so it is tunnelled out
+        private static void write(IoAction action){
+            try {
+                action.run();
+            }catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class Reader {
+        private static final Tokentype[] TYPES=Tokentype.values();
+        private final DataInputStream in;
+        private final SymbolTable symbols;
+        private final List<String> strings=new ArrayList<>();
+        // the body's size: every statement and string byte takes at least a
+        // byte of it, so a count or length above it means the entry is damaged
+        private final long limit;
+
+        Reader(DataInputStream in,SymbolTable symbols,long limit){
+            this.in=in;
+            this.symbols=symbols;
+            this.limit=limit;
+        }
+
+        List<Stmt> statements()throws IOException{
+            int count=size();
+            List<Stmt> statements=new ArrayList<>(count);
+            for (int i=0;i<count;i++){
+                statements.add(statement());
+            }
+            return statements;
+        }
+
+        private Stmt statement()throws IOException{
+            byte tag=in.readByte();
+            switch (tag){
+                case BLOCK: return new Stmt.Block(statements());
+                case EXPRESSION: return new Stmt.Expression(expression());
+                case PRINT: return new Stmt.Print(expression());
+                case VAR: {
+                    Token name=token();
+                    Expr initializer=in.readByte()==0 ? null : expression();
+                    return new Stmt.Var(name,initializer);
+                }
+                case IF: {
+                    Expr condition=expression();
+                    Stmt thenBranch=statement();
+                    Stmt elseBranch=in.readByte()==0 ? null : statement();
+                    return new Stmt.If(condition,thenBranch,elseBranch);
+                }
+                case WHILE: {
+                    Expr condition=expression();
+                    return new Stmt.While(condition,statement());
+                }
+            }
+            throw new IOException("Unknown statement tag "+tag);
+        }
+
+        private Expr expression()throws IOException{
+            byte tag=in.readByte();
+            switch (tag){
+                case ASSIGN: {
+                    Token name=token();
+                    return new Expr.Assign(name,expression());
+                }
+                case BINARY: {
+                    Expr left=expression();
+                    Token operator=token();
+                    return new Expr.Binary(left,operator,expression());
+                }
+                case GROUPING: return new Expr.Grouping(expression());
+                case LITERAL: return new Expr.Literal(literal());
+                case UNARY: {
+                    Token operator=token();
+                    return new Expr.Unary(operator,expression());
+                }
+                case VARIABLE: return new Expr.Variable(token());
+                case LOGICAL: {
+                    Expr left=expression();
+                    Token operator=token();
+                    return new Expr.Logical(left,operator,expression());
+                }
+            }
+            throw new IOException("Unknown expression tag "+tag);
+        }
+
+        private Token token()throws IOException{
+            Tokentype type=TYPES[varint()];
+            String lexeme=string();
+            int line=varint();
+            int column=varint();
+            if (type==Tokentype.IDENTIFIER){
+                int symbol=symbols.intern(lexeme);
+                return new Token(type,symbols.name(symbol),null,line,column,symbol);
+            }
+            return new Token(type,lexeme,null,line,column,-1);
+        }
+
+        private Object literal()throws IOException{
+            byte tag=in.readByte();
+            switch (tag){
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case NUMBER: return in.readDouble();
+                case STRING: return LoxString.of(string());
+                case INTEGER: {
+                    long zigzag=varlong();
+                    return (double) ((zigzag>>>1)^-(zigzag&1));
+                }
+            }
+            throw new IOException("Unknown literal tag "+tag);
+        }
+
+        private String string()throws IOException{
+            int index=varint();
+            if (index>0){
+                return strings.get(index-1);
+            }
+            byte[] bytes=new byte[size()];
+            in.readFully(bytes);
+            String value=new String(bytes,StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        // a count or length, checked before anything is allocated for it
+        private int size()throws IOException{
+            int size=varint();
+            if (size<0 || size>limit){
+                throw new IOException("Size "+size+" past the end of the entry");
+            }
+            return size;
+        }
+
+        // written as the unsigned 32 bits of an int
+        private int varint()throws IOException{
+            long value=varlong();
+            if ((value&~0xffffffffL)!=0){
+                throw new IOException("Varint wider than 32 bits");
+            }
+            return (int) value;
+        }
+
+        private long varlong()throws IOException{
+            long value=0;
+            for (int shift=0;;shift+=7){
+                if (shift>63){
+                    throw new IOException("Varint longer than 64 bits");
+                }
+                int b=in.readUnsignedByte();
+                value|=(long) (b&0x7f)<<shift;
+                if ((b&0x80)==0){
+                    return value;
+                }
+            }
+        }
+    }
+}
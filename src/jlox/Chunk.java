@@ -0,0 +1,57 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A compiled unit of bytecode with its constant pool.
+public class Chunk {
+    byte[] code=new byte[64];
+    int[] lines=new int[64];
+    int count=0;
+    int maxStack=0;
+    Object[] constants=new Object[8];
+    int constantCount=0;
+    private final Map<Object,Integer> constantIndex=new HashMap<>();
+
+    void write(byte b,int line){
+        if (count==code.length){
+            code=Arrays.copyOf(code,count*2);
+            lines=Arrays.copyOf(lines,count*2);
+        }
+        code[count]=b;
+        lines[count]=line;
+        count++;
+    }
+
+    void writeShort(int value,int line){
+        write((byte)(value>>8),line);
+        write((byte)value,line);
+    }
+
+    void writeInt(int value,int line){
+        writeShort(value>>>16,line);
+        writeShort(value&0xffff,line);
+    }
+
+    // fills in the operand of a jump emitted before its target was known
+    void patchInt(int offset,int value){
+        code[offset]=(byte)(value>>>24);
+        code[offset+1]=(byte)(value>>>16);
+        code[offset+2]=(byte)(value>>>8);
+        code[offset+3]=(byte)value;
+    }
+
+    int addConstant(Object value){
+        Integer index=constantIndex.get(value);
+        if (index!=null){
+            return index;
+        }
+        if (constantCount==constants.length){
+            constants=Arrays.copyOf(constants,constantCount*2);
+        }
+        constants[constantCount]=value;
+        constantIndex.put(value,constantCount);
+        return constantCount++;
+    }
+}
@@ -0,0 +1,307 @@
+package jlox;
+// Just enough of a class file writer for the Jit: one class with no fields
+// and methods that only have a Code attribute. Classes are written as version
+// 49 (Java 5), the last version the JVM verifies by type inference, so the
+// code needs no StackMapTable and branches need no frames.
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+final class ClassFileWriter {
+    static final int ACONST_NULL=1, ICONST_0=3, ICONST_1=4, DCONST_0=14, BIPUSH=16, SIPUSH=17,
+            LDC_W=19, LDC2_W=20, DLOAD=24, ALOAD=25, AALOAD=50, DSTORE=57, ASTORE=58,
+            POP=87, POP2=88, DUP=89, DUP_X2=91, DUP2=92, DADD=99, DSUB=103, DMUL=107, DDIV=111,
+            DNEG=119, IXOR=130, DCMPL=151, DCMPG=152, IFEQ=153, IFNE=154, IFLT=155, IFGE=156,
+            IFGT=157, IFLE=158, GOTO=167, RETURN=177, INVOKEVIRTUAL=182, INVOKESPECIAL=183,
+            INVOKESTATIC=184, CHECKCAST=192, WIDE=196;
+    static final int ACC_PUBLIC=0x0001, ACC_FINAL=0x0010, ACC_SUPER=0x0020;
+    private static final int VERSION=49;
+
+    // The class outgrew a limit of the class file format (64K of code per
+    // method, 64K constants, 16-bit branch offsets).
+    static class TooLarge extends RuntimeException {
+        TooLarge(){
+            super(null,null,false,false);
+        }
+    }
+
+    private final ByteArrayOutputStream poolBytes=new ByteArrayOutputStream();
+    private final DataOutputStream pool=new DataOutputStream(poolBytes);
+    private final Map<String,Integer> entries=new HashMap<>();
+    private int poolCount=1;
+    private final ByteArrayOutputStream methodBytes=new ByteArrayOutputStream();
+    private final DataOutputStream methods=new DataOutputStream(methodBytes);
+    private int methodCount=0;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    // names are internal ones, e.g. "java/lang/Object"
+    ClassFileWriter(String name,String superName,String... interfaceNames){
+        thisClass=classRef(name);
+        superClass=classRef(superName);
+        interfaces=new int[interfaceNames.length];
+        for (int i=0;i<interfaces.length;i++){
+            interfaces[i]=classRef(interfaceNames[i]);
+        }
+    }
+
+    int utf8(String text){
+        String key="u"+text;
+        Integer index=entries.get(key);
+        if (index!=null){
+            return index;
+        }
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(text);
+        }catch (IOException e){
+            // longer than 64K bytes
+            throw new TooLarge();
+        }
+        return add(key,1);
+    }
+
+    int classRef(String name){
+        return entry("c"+name,7,utf8(name),-1);
+    }
+
+    int methodRef(String owner,String name,String descriptor){
+        return entry("m"+owner+"."+name+descriptor,10,classRef(owner),nameAndType(name,descriptor));
+    }
+
+    int intConstant(int value){
+        String key="I"+value;
+        Integer index=entries.get(key);
+        if (index!=null){
+            return index;
+        }
+        write(3);
+        writeInt(value);
+        return add(key,1);
+    }
+
+    int doubleConstant(double value){
+        long bits=Double.doubleToRawLongBits(value);
+        String key="D"+bits;
+        Integer index=entries.get(key);
+        if (index!=null){
+            return index;
+        }
+        write(6);
+        writeInt((int) (bits>>>32));
+        writeInt((int) bits);
+        // doubles take two entries
+        return add(key,2);
+    }
+
+    private int nameAndType(String name,String descriptor){
+        return entry("n"+name+":"+descriptor,12,utf8(name),utf8(descriptor));
+    }
+
+    // an entry holding one or two u2 references to other entries
+    private int entry(String key,int tag,int first,int second){
+        Integer index=entries.get(key);
+        if (index!=null){
+            return index;
+        }
+        write(tag);
+        writeShort(first);
+        if (second>=0){
+            writeShort(second);
+        }
+        return add(key,1);
+    }
+
+    private int add(String key,int size){
+        int index=poolCount;
+        poolCount+=size;
+        if (poolCount>0xffff){
+            throw new TooLarge();
+        }
+        entries.put(key,index);
+        return index;
+    }
+
+    private void write(int b){
+        poolBytes.write(b);
+    }
+
+    private void writeShort(int value){
+        write(value>>>8);
+        write(value);
+    }
+
+    private void writeInt(int value){
+        writeShort(value>>>16);
+        writeShort(value);
+    }
+
+    void method(int access,String name,String descriptor,Code code){
+        code.resolveLabels();
+        if (code.length>0xffff){
+            throw new TooLarge();
+        }
+        int nameIndex=utf8(name);
+        int descriptorIndex=utf8(descriptor);
+        int codeName=utf8("Code");
+        try {
+            methods.writeShort(access);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+            methods.writeShort(1);
+            methods.writeShort(codeName);
+            methods.writeInt(12+code.length);
+            methods.writeShort(code.maxStack);
+            methods.writeShort(code.maxLocals);
+            methods.writeInt(code.length);
+            methods.write(code.bytes,0,code.length);
+            // no exception table and no attributes of its own
+            methods.writeShort(0);
+            methods.writeShort(0);
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray(){
+        ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL|ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index:interfaces){
+                out.writeShort(index);
+            }
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0);
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // A branch target, made by Code.label(). Jumps to it are patched when the
+    // method is written.
+    static final class Label {
+        private int position=-1;
+        // offsets of the jump instructions that go here
+        private int[] jumps=new int[2];
+        private int jumpCount=0;
+    }
+
+    // The bytecode of one method. Callers pass the stack effect of every
+    // instruction, counting a double as two slots, which is how the JVM
+    // counts max_stack.
+    static final class Code {
+        private byte[] bytes=new byte[256];
+        private int length=0;
+        private int stack=0;
+        private int maxStack=0;
+        private int maxLocals;
+        private Label[] labels=new Label[16];
+        private int labelCount=0;
+
+        Code(int maxLocals){
+            this.maxLocals=maxLocals;
+        }
+
+        void op(int opcode,int stackEffect){
+            u1(opcode);
+            stack(stackEffect);
+        }
+
+        void op1(int opcode,int operand,int stackEffect){
+            op(opcode,stackEffect);
+            u1(operand);
+        }
+
+        void op2(int opcode,int operand,int stackEffect){
+            op(opcode,stackEffect);
+            u2(operand);
+        }
+
+        // the load and store instructions, in their wide form when needed
+        void local(int opcode,int index,int stackEffect){
+            if (index>0xff){
+                u1(WIDE);
+                op2(opcode,index,stackEffect);
+            }else {
+                op1(opcode,index,stackEffect);
+            }
+            int slots=opcode==DLOAD || opcode==DSTORE ? 2 : 1;
+            maxLocals=Math.max(maxLocals,index+slots);
+        }
+
+        // for code reached only by a jump, where the stack isn't what the
+        // instruction before left it at
+        void stack(int stackEffect){
+            stack+=stackEffect;
+            maxStack=Math.max(maxStack,stack);
+        }
+
+        Label label(){
+            if (labelCount==labels.length){
+                labels=Arrays.copyOf(labels,labelCount*2);
+            }
+            Label label=new Label();
+            labels[labelCount++]=label;
+            return label;
+        }
+
+        void jump(int opcode,Label target,int stackEffect){
+            if (target.jumpCount==target.jumps.length){
+                target.jumps=Arrays.copyOf(target.jumps,target.jumpCount*2);
+            }
+            target.jumps[target.jumpCount++]=length;
+            op2(opcode,0,stackEffect);
+        }
+
+        void mark(Label label){
+            label.position=length;
+        }
+
+        private void resolveLabels(){
+            for (int i=0;i<labelCount;i++){
+                Label label=labels[i];
+                for (int j=0;j<label.jumpCount;j++){
+                    int jump=label.jumps[j];
+                    int offset=label.position-jump;
+                    if (offset<Short.MIN_VALUE || offset>Short.MAX_VALUE){
+                        throw new TooLarge();
+                    }
+                    bytes[jump+1]=(byte) (offset>>8);
+                    bytes[jump+2]=(byte) offset;
+                }
+            }
+            labelCount=0;
+        }
+
+        private void u1(int b){
+            if (length==bytes.length){
+                bytes=Arrays.copyOf(bytes,length*2);
+            }
+            bytes[length++]=(byte) b;
+        }
+
+        private void u2(int value){
+            u1(value>>>8);
+            u1(value);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package jlox;
+// Thin client for a running Daemon. Sends one script (a path, or the source
+// on stdin when the script is "-"), copies back what it printed and exits
+// with its exit code, so it can replace `java -jar jlox.jar script` as is.
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+public class Client {
+    public static void main(String[] args)throws IOException{
+        String address=Daemon.DEFAULT_ADDRESS;
+        int first=0;
+        if (first<args.length && args[first].startsWith("--connect=")){
+            address=args[first].substring("--connect=".length());
+            first++;
+        }
+        if (args.length-first!=1){
+            System.out.println("Usage: lox-client [--connect=socket|port] script|-");
+            System.exit(64);
+        }
+        SocketAddress target=Daemon.address(address);
+        SocketChannel channel;
+        try {
+            channel=SocketChannel.open(target);
+        }catch (IOException e){
+            System.err.println("Could not connect to the daemon at "+target+": "+e.getMessage());
+            System.exit(69);
+            return;
+        }
+        try (channel){
+            DataOutputStream out=new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            if (args[first].equals("-")){
+                out.writeByte(Daemon.SOURCE);
+                Daemon.writeText(out,new String(System.in.readAllBytes(),StandardCharsets.UTF_8));
+            }else {
+                // the daemon has its own working directory
+                out.writeByte(Daemon.PATH);
+                Daemon.writeText(out,Paths.get(args[first]).toAbsolutePath().toString());
+            }
+            out.flush();
+            DataInputStream in=new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            for (;;){
+                byte stream=in.readByte();
+                if (stream==Daemon.EXIT){
+                    int code=in.readInt();
+                    System.out.flush();
+                    System.exit(code);
+                }
+                byte[] bytes=Daemon.readBytes(in);
+                (stream==Daemon.OUT ? System.out : System.err).write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package jlox;
+// Turns a resolved statement list into a tree of lambdas in one pass, so
+// running it is only calls between them: each operator becomes a lambda for
+// that operator alone, and each variable reference one that goes straight
+// to its storage.
+//  - locals live in one flat array per run, every declaration at an index
+//    of its own, so blocks need no environment at all
+//  - globals stay in the Interpreter's Environment, looked up by symbol
+//  - an Invariant keeps its value in a frame slot that its loop clears on
+//    entry, as the Interpreter does with the node's own fields
+// Errors are the Interpreter's, with the same tokens.
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>,Stmt.Visitor<ClosureCompiler.Exec> {
+    // an invariant that hasn't been computed in this run of its loop
+    private static final Object UNSET=new Object();
+
+    // the state of one run
+    static final class Frame {
+        final Environment globals;
+        final OutputSink out;
+        final Object[] locals;
+
+        Frame(Environment globals,OutputSink out,int size){
+            this.globals=globals;
+            this.out=out;
+            this.locals=new Object[size];
+        }
+    }
+
+    interface Eval {
+        Object eval(Frame frame);
+    }
+
+    interface Exec {
+        void exec(Frame frame);
+    }
+
+    // A compiled script. Holds no state of its own, so it can run any number
+    // of times, on several threads at once.
+    static final class Script {
+        private final Exec[] statements;
+        private final int frameSize;
+
+        private Script(Exec[] statements,int frameSize){
+            this.statements=statements;
+            this.frameSize=frameSize;
+        }
+
+        // a runtime error is thrown as a RuntimeError
+        void run(Environment globals,OutputSink out){
+            Frame frame=new Frame(globals,out,frameSize);
+            for (Exec statement:statements){
+                statement.exec(frame);
+            }
+        }
+    }
+
+    // frame index of each local in the blocks around the node, innermost last
+    private final List<int[]> scopes=new ArrayList<>();
+    private final Map<Expr.Invariant,Integer> invariants=new IdentityHashMap<>();
+    private int frameSize=0;
+
+    private ClosureCompiler(){
+    }
+
+    static Script compile(List<Stmt> statements){
+        ClosureCompiler compiler=new ClosureCompiler();
+        Exec[] compiled=compiler.compileAll(statements);
+        return new Script(compiled,compiler.frameSize);
+    }
+
+    private Exec[] compileAll(List<Stmt> statements){
+        Exec[] compiled=new Exec[statements.size()];
+        for (int i=0;i<compiled.length;i++){
+            compiled[i]=statements.get(i).accept(this);
+        }
+        return compiled;
+    }
+
+    private Eval compile(Expr expr){
+        return expr.accept(this);
+    }
+
+    // -1 for a global
+    private int local(int depth,int slot){
+        return depth<0 ? -1 : scopes.get(scopes.size()-1-depth)[slot];
+    }
+
+    @Override
+    public Exec visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slots>0){
+            scopes.add(new int[stmt.slots]);
+        }
+        Exec[] statements=compileAll(stmt.statements);
+        if (stmt.slots>0){
+            scopes.remove(scopes.size()-1);
+        }
+        switch (statements.length){
+            case 0: return frame->{};
+            case 1: return statements[0];
+            case 2: {
+                Exec first=statements[0];
+                Exec second=statements[1];
+                return frame->{
+                    first.exec(frame);
+                    second.exec(frame);
+                };
+            }
+        }
+        return frame->{
+            for (Exec statement:statements){
+                statement.exec(frame);
+            }
+        };
+    }
+
+    @Override
+    public Exec visitExpressionStmt(Stmt.Expression stmt) {
+        Eval expression=compile(stmt.expression);
+        return expression::eval;
+    }
+
+    @Override
+    public Exec visitIfStmt(Stmt.If stmt) {
+        Eval condition=compile(stmt.condition);
+        Exec thenBranch=stmt.thenBranch.accept(this);
+        if (stmt.elseBranch==null){
+            return frame->{
+                if (Interpreter.isTruthy(condition.eval(frame))){
+                    thenBranch.exec(frame);
+                }
+            };
+        }
+        Exec elseBranch=stmt.elseBranch.accept(this);
+        return frame->{
+            if (Interpreter.isTruthy(condition.eval(frame))){
+                thenBranch.exec(frame);
+            }else {
+                elseBranch.exec(frame);
+            }
+        };
+    }
+
+    @Override
+    public Exec visitPrintStmt(Stmt.Print stmt) {
+        Eval expression=compile(stmt.expression);
+        return frame->frame.out.print(expression.eval(frame));
+    }
+
+    @Override
+    public Exec visitVarStmt(Stmt.Var stmt) {
+        Eval initializer=stmt.initializer==null ? frame->null : compile(stmt.initializer);
+        if (stmt.slot<0){
+            Token name=stmt.name;
+            return frame->frame.globals.define(name,initializer.eval(frame));
+        }
+        int index=frameSize++;
+        scopes.get(scopes.size()-1)[stmt.slot]=index;
+        return frame->frame.locals[index]=initializer.eval(frame);
+    }
+
+    @Override
+    public Exec visitWhileStmt(Stmt.While stmt) {
+        Eval condition=compile(stmt.condition);
+        Exec body=stmt.body.accept(this);
+        if (stmt.invariants==null){
+            return frame->{
+                while (Interpreter.isTruthy(condition.eval(frame))){
+                    body.exec(frame);
+                }
+            };
+        }
+        int[] hoisted=new int[stmt.invariants.size()];
+        for (int i=0;i<hoisted.length;i++){
+            hoisted[i]=invariants.get(stmt.invariants.get(i));
+        }
+        return frame->{
+            for (int index:hoisted){
+                frame.locals[index]=UNSET;
+            }
+            while (Interpreter.isTruthy(condition.eval(frame))){
+                body.exec(frame);
+            }
+        };
+    }
+
+    @Override
+    public Eval visitAssignExpr(Expr.Assign expr) {
+        Eval value=compile(expr.value);
+        int index=local(expr.depth,expr.slot);
+        if (index<0){
+            Token name=expr.name;
+            return frame->{
+                Object result=value.eval(frame);
+                frame.globals.assign(name,result);
+                return result;
+            };
+        }
+        return frame->frame.locals[index]=value.eval(frame);
+    }
+
+    @Override
+    public Eval visitBinaryExpr(Expr.Binary expr) {
+        Eval left=compile(expr.left);
+        Eval right=compile(expr.right);
+        Token operator=expr.operator;
+        switch (operator.type){
+            case BANG_EQUAL: return frame->!Interpreter.isEqual(left.eval(frame),right.eval(frame));
+            case EQUAL_EQUAL: return frame->Interpreter.isEqual(left.eval(frame),right.eval(frame));
+            case GREATER: return frame->{
+                Object a=left.eval(frame);
+                Object b=right.eval(frame);
+                checkNumbers(operator,a,b);
+                return (double) a>(double) b;
+            };
+            case GREATER_EQUAL: return frame->{
+                Object a=left.eval(frame);
+                Object b=right.eval(frame);
+                checkNumbers(operator,a,b);
+                return (double) a>=(double) b;
+            };
+            case LESS: return frame->{
+                Object a=left.eval(frame);
+                Object b=right.eval(frame);
+                checkNumbers(operator,a,b);
+                return (double) a<(double) b;
+            };
+            case LESS_EQUAL: return frame->{
+                Object a=left.eval(frame);
+                Object b=right.eval(frame);
+                checkNumbers(operator,a,b);
+                return (double) a<=(double) b;
+            };
+            case MINUS: return frame->{
+                Object a=left.eval(frame);
+                Object b=right.eval(frame);
+                checkNumbers(operator,a,b);
+                return (double) a-(double) b;
+            };
+            case SLASH: return frame->{
+                Object a=left.eval(frame);
+                Object b=right.eval(frame);
+                checkNumbers(operator,a,b);
+                return (double) a/(double) b;
+            };
+            case STAR: return frame->{
+                Object a=left.eval(frame);
+                Object b=right.eval(frame);
+                checkNumbers(operator,a,b);
+                return (double) a*(double) b;
+            };
+            case PLUS: return frame->{
+                Object a=left.eval(frame);
+                Object b=right.eval(frame);
+                if (a instanceof Double && b instanceof Double){
+                    return (double) a+(double) b;
+                }
+                if (a instanceof LoxString && b instanceof LoxString){
+                    return LoxString.concat((LoxString) a,(LoxString) b);
+                }
+                throw new RuntimeError(operator,"Operand must be two numbers or two string");
+            };
+        }
+        throw new IllegalStateException("Unexpected binary operator "+operator.type);
+    }
+
+    @Override
+    public Eval visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Eval visitInvariantExpr(Expr.Invariant expr) {
+        Eval expression=compile(expr.expression);
+        int index=frameSize++;
+        invariants.put(expr,index);
+        return frame->{
+            Object value=frame.locals[index];
+            if (value==UNSET){
+                value=expression.eval(frame);
+                frame.locals[index]=value;
+            }
+            return value;
+        };
+    }
+
+    @Override
+    public Eval visitLiteralExpr(Expr.Literal expr) {
+        Object value=expr.value;
+        return frame->value;
+    }
+
+    @Override
+    public Eval visitLogicalExpr(Expr.Logical expr) {
+        Eval left=compile(expr.left);
+        Eval right=compile(expr.right);
+        if (expr.operator.type==Tokentype.OR){
+            return frame->{
+                Object value=left.eval(frame);
+                return Interpreter.isTruthy(value) ? value : right.eval(frame);
+            };
+        }
+        return frame->{
+            Object value=left.eval(frame);
+            return Interpreter.isTruthy(value) ? right.eval(frame) : value;
+        };
+    }
+
+    @Override
+    public Eval visitUnaryExpr(Expr.Unary expr) {
+        Eval right=compile(expr.right);
+        Token operator=expr.operator;
+        switch (operator.type){
+            case BANG: return frame->!Interpreter.isTruthy(right.eval(frame));
+            case MINUS: return frame->{
+                Object value=right.eval(frame);
+                if (!(value instanceof Double)){
+                    throw new RuntimeError(operator,"operand must be a number.");
+                }
+                return -(double) value;
+            };
+        }
+        throw new IllegalStateException("Unexpected unary operator "+operator.type);
+    }
+
+    @Override
+    public Eval visitVariableExpr(Expr.Variable expr) {
+        int index=local(expr.depth,expr.slot);
+        if (index<0){
+            Token name=expr.name;
+            return frame->frame.globals.get(name);
+        }
+        return frame->frame.locals[index];
+    }
+
+    private static void checkNumbers(Token operator,Object left,Object right){
+        if (!(left instanceof Double && right instanceof Double)){
+            throw new RuntimeError(operator,"Operand must be number");
+        }
+    }
+}
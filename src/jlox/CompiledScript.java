@@ -0,0 +1,41 @@
+package jlox;
+// A script the Jit turned into a JVM class. Runs against the globals of an
+// Interpreter, so compiled and interpreted runs can take turns on the same
+// ones; holds no state of its own and can run on several threads at once.
+// Globals are found by the symbols of the table it was compiled against;
+// rebind gives a copy for another table.
+
+final class CompiledScript {
+    // implemented by the generated hidden class
+    interface Body {
+        void run(Environment globals,OutputSink out,Object[] constants);
+    }
+
+    private final Body body;
+    // the Tokens and strings the code refers to, by index
+    private final Object[] constants;
+
+    CompiledScript(Body body,Object[] constants){
+        this.body=body;
+        this.constants=constants;
+    }
+
+    // the same code with identifier Tokens interned into symbols
+    CompiledScript rebind(SymbolTable symbols){
+        Object[] rebound=constants.clone();
+        for (int i=0;i<rebound.length;i++){
+            if (rebound[i] instanceof Token){
+                Token token=(Token) rebound[i];
+                if (token.symbol>=0){
+                    rebound[i]=new Token(token.type,token.lexeme,token.literal,token.line,token.column,symbols.intern(token.lexeme));
+                }
+            }
+        }
+        return new CompiledScript(body,rebound);
+    }
+
+    // a runtime error is thrown as a RuntimeError, as from Interpreter.execute
+    void run(Environment globals,OutputSink out){
+        body.run(globals,out,constants);
+    }
+}
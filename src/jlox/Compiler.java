@@ -0,0 +1,367 @@
+package jlox;
+// Compiles a resolved statement list into a Chunk for the VM.
+// Locals live on the VM stack: a block's locals start at the stack height
+// on block entry, so a resolved (depth, slot) pair maps to base + slot.
+// Local indexes and POPN counts are u16 operands, so a script with more than
+// 65535 locals in scope at once is a compile error.
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Compiler implements Expr.Visitor<Void>,Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS=0xffff;
+    private final Chunk chunk=new Chunk();
+    private final ErrorReporter reporter;
+    private final List<Integer> blockBases=new ArrayList<>();
+    private int stackDepth=0;
+    private int line=1;
+    // reported once, not for every local past the limit
+    private boolean tooManyLocals=false;
+    // whether the expression just compiled always leaves a number, for the
+    // unchecked *_NUMBER instructions
+    private boolean number=false;
+
+    Compiler(){
+        this(ErrorReporter.STDERR);
+    }
+
+    Compiler(ErrorReporter reporter){
+        this.reporter=reporter;
+    }
+
+    Chunk compile(List<Stmt> statements){
+        for (Stmt statement:statements){
+            statement.accept(this);
+        }
+        emit(OpCode.RETURN,0);
+        return chunk;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slots==0){
+            // no scope of its own, see Resolver
+            for (Stmt statement:stmt.statements){
+                statement.accept(this);
+            }
+            return null;
+        }
+        blockBases.add(stackDepth);
+        for (Stmt statement:stmt.statements){
+            statement.accept(this);
+        }
+        blockBases.remove(blockBases.size()-1);
+        emit(OpCode.POPN,-stmt.slots);
+        chunk.writeShort(stmt.slots,line);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign){
+            // the assigned value isn't used, so the store pops it
+            Expr.Assign assign=(Expr.Assign) stmt.expression;
+            compile(assign.value);
+            line=assign.name.line;
+            if (assign.depth<0){
+                emitInt(OpCode.STORE_GLOBAL,-1,assign.name.symbol);
+            }else {
+                emitShort(OpCode.STORE_LOCAL,-1,localIndex(assign.depth,assign.slot));
+            }
+            return null;
+        }
+        compile(stmt.expression);
+        emit(OpCode.POP,-1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        List<Integer> elseJumps=jumpIfFalse(stmt.condition);
+        stmt.thenBranch.accept(this);
+        int endJump=emitJump(OpCode.JUMP);
+        for (int elseJump:elseJumps){
+            patchJump(elseJump);
+        }
+        if (stmt.elseBranch!=null){
+            stmt.elseBranch.accept(this);
+        }
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT,-1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line=stmt.name.line;
+        if (stmt.initializer!=null){
+            compile(stmt.initializer);
+        }else {
+            emit(OpCode.NIL,1);
+        }
+        if (stmt.slot<0){
+            // the value is left on the stack as the local otherwise
+            emitInt(OpCode.DEFINE_GLOBAL,-1,stmt.name.symbol);
+        }else if (localIndex(0,stmt.slot)>=MAX_LOCALS && !tooManyLocals){
+            tooManyLocals=true;
+            reporter.error(stmt.name,"Too many local variables.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        // the condition goes after the body, so an iteration takes one jump
+        int conditionJump=emitJump(OpCode.JUMP);
+        int start=chunk.count;
+        stmt.body.accept(this);
+        patchJump(conditionJump);
+        Expr condition=ungroup(stmt.condition);
+        List<Integer> exitJumps=new ArrayList<>();
+        while (isAnd(condition)){
+            Expr.Logical and=(Expr.Logical) condition;
+            exitJumps.addAll(jumpIfFalse(and.left));
+            condition=ungroup(and.right);
+        }
+        compile(condition);
+        emitInt(OpCode.POP_JUMP_IF_TRUE,-1,start);
+        for (int exitJump:exitJumps){
+            patchJump(exitJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line=expr.name.line;
+        if (expr.depth<0){
+            emitInt(OpCode.SET_GLOBAL,0,expr.name.symbol);
+        }else {
+            emitShort(OpCode.SET_LOCAL,0,localIndex(expr.depth,expr.slot));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        boolean leftNumber=number;
+        Tokentype operator=expr.operator.type;
+        Double constant=numberLiteral(expr.right);
+        if (constant!=null && operator!=Tokentype.EQUAL_EQUAL && operator!=Tokentype.BANG_EQUAL){
+            int index=chunk.addConstant(constant);
+            if (index<=0xffff){
+                line=expr.operator.line;
+                emitShort(constantForm(operator),0,index);
+                number=isArithmetic(operator);
+                return null;
+            }
+        }
+        compile(expr.right);
+        boolean numbers=leftNumber && number;
+        line=expr.operator.line;
+        number=isArithmetic(operator);
+        switch (operator){
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL,-1); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL,-1); break;
+            case GREATER: emit(OpCode.GREATER,-1); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL,-1); break;
+            case LESS: emit(OpCode.LESS,-1); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL,-1); break;
+            case MINUS: emit(numbers ? OpCode.SUBTRACT_NUMBER : OpCode.SUBTRACT,-1); break;
+            case PLUS:
+                emit(numbers ? OpCode.ADD_NUMBER : OpCode.ADD,-1);
+                // either operand could be a string
+                number=numbers;
+                break;
+            case SLASH: emit(numbers ? OpCode.DIVIDE_NUMBER : OpCode.DIVIDE,-1); break;
+            case STAR: emit(numbers ? OpCode.MULTIPLY_NUMBER : OpCode.MULTIPLY,-1); break;
+            default:
+                throw new IllegalStateException("Unexpected binary operator "+expr.operator.type);
+        }
+        return null;
+    }
+
+    // Compiles a condition that falls through when it holds and otherwise
+    // takes one of the returned jumps, with nothing left on the stack either
+    // way. An `and` needs no value of its own then.
+    private List<Integer> jumpIfFalse(Expr condition){
+        condition=ungroup(condition);
+        if (isAnd(condition)){
+            Expr.Logical and=(Expr.Logical) condition;
+            List<Integer> jumps=jumpIfFalse(and.left);
+            jumps.addAll(jumpIfFalse(and.right));
+            return jumps;
+        }
+        compile(condition);
+        List<Integer> jumps=new ArrayList<>();
+        jumps.add(emitJump(OpCode.POP_JUMP_IF_FALSE,-1));
+        return jumps;
+    }
+
+    private static boolean isAnd(Expr expr){
+        return expr instanceof Expr.Logical && ((Expr.Logical) expr).operator.type==Tokentype.AND;
+    }
+
+    private static Expr ungroup(Expr expr){
+        while (expr instanceof Expr.Grouping){
+            expr=((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+
+    private static boolean isArithmetic(Tokentype operator){
+        return operator==Tokentype.PLUS || operator==Tokentype.MINUS
+                || operator==Tokentype.STAR || operator==Tokentype.SLASH;
+    }
+
+    // the value of a number literal, null for anything else
+    private static Double numberLiteral(Expr expr){
+        expr=ungroup(expr);
+        if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double){
+            return (Double) ((Expr.Literal) expr).value;
+        }
+        return null;
+    }
+
+    private static byte constantForm(Tokentype operator){
+        switch (operator){
+            case GREATER: return OpCode.GREATER_CONSTANT;
+            case GREATER_EQUAL: return OpCode.GREATER_EQUAL_CONSTANT;
+            case LESS: return OpCode.LESS_CONSTANT;
+            case LESS_EQUAL: return OpCode.LESS_EQUAL_CONSTANT;
+            case MINUS: return OpCode.SUBTRACT_CONSTANT;
+            case PLUS: return OpCode.ADD_CONSTANT;
+            case SLASH: return OpCode.DIVIDE_CONSTANT;
+            case STAR: return OpCode.MULTIPLY_CONSTANT;
+        }
+        throw new IllegalStateException("Unexpected binary operator "+operator);
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    // the VM has no cache for it and just evaluates the expression each time
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line=expr.operator.line;
+        if (expr.operator.type==Tokentype.AND){
+            int endJump=emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP,-1);
+            compile(expr.right);
+            patchJump(endJump);
+        }else {
+            int elseJump=emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump=emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP,-1);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        number=false;
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        number=expr.value instanceof Double;
+        if (expr.value==null){
+            emit(OpCode.NIL,1);
+        }else if (Boolean.TRUE.equals(expr.value)){
+            emit(OpCode.TRUE,1);
+        }else if (Boolean.FALSE.equals(expr.value)){
+            emit(OpCode.FALSE,1);
+        }else {
+            int constant=chunk.addConstant(expr.value);
+            if (constant<=0xffff){
+                emitShort(OpCode.CONSTANT,1,constant);
+            }else {
+                emitInt(OpCode.CONSTANT_LONG,1,constant);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line=expr.operator.line;
+        switch (expr.operator.type){
+            case BANG: emit(OpCode.NOT,0); number=false; break;
+            case MINUS: emit(OpCode.NEGATE,0); number=true; break;
+            default:
+                throw new IllegalStateException("Unexpected unary operator "+expr.operator.type);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line=expr.name.line;
+        number=false;
+        if (expr.depth<0){
+            emitInt(OpCode.GET_GLOBAL,1,expr.name.symbol);
+        }else {
+            emitShort(OpCode.GET_LOCAL,1,localIndex(expr.depth,expr.slot));
+        }
+        return null;
+    }
+
+    private void compile(Expr expr){
+        expr.accept(this);
+    }
+
+    private int localIndex(int depth,int slot){
+        return blockBases.get(blockBases.size()-1-depth)+slot;
+    }
+
+    private void emit(byte op,int stackEffect){
+        chunk.write(op,line);
+        stackDepth+=stackEffect;
+        if (stackDepth>chunk.maxStack){
+            chunk.maxStack=stackDepth;
+        }
+    }
+
+    private void emitShort(byte op,int stackEffect,int operand){
+        emit(op,stackEffect);
+        chunk.writeShort(operand,line);
+    }
+
+    private void emitInt(byte op,int stackEffect,int operand){
+        emit(op,stackEffect);
+        chunk.writeInt(operand,line);
+    }
+
+    // returns where the target goes, for patchJump
+    private int emitJump(byte op){
+        return emitJump(op,0);
+    }
+
+    private int emitJump(byte op,int stackEffect){
+        emitInt(op,stackEffect,0);
+        return chunk.count-4;
+    }
+
+    // points the jump at the next instruction emitted
+    private void patchJump(int offset){
+        chunk.patchInt(offset,chunk.count);
+    }
+}
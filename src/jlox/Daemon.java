@@ -0,0 +1,208 @@
+package jlox;
+// Long-running server mode (--daemon). One JVM stays up and warm and runs
+// the scripts sent to it over a Unix domain socket or a localhost port, so
+// callers stop paying for JVM startup and JIT warm-up on every script.
+// Each connection gets a virtual thread and a LoxContext of its own, so
+// scripts run concurrently and never see each other's globals; Client is the
+// other end.
+//
+// request  → kind text               kind is PATH or SOURCE
+// response → frame* EXIT code        code as jlox would exit with
+// frame    → (OUT|ERR) text
+// text     → length(int) UTF-8 bytes
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class Daemon {
+    static final String DEFAULT_ADDRESS=Paths.get(System.getProperty("java.io.tmpdir"),"jlox.sock").toString();
+    static final byte PATH=0, SOURCE=1;
+    static final byte EXIT=0, OUT=1, ERR=2;
+    // longest text either side accepts, so a bad length can't exhaust the heap
+    static final int MAX_TEXT=64<<20;
+    private final SocketAddress address;
+    private final LoxContext.Options options;
+
+    Daemon(SocketAddress address,LoxContext.Options options){
+        this.address=address;
+        this.options=options;
+    }
+
+    // a bare number is a localhost port, anything else a socket file
+    static SocketAddress address(String spec){
+        if (!spec.isEmpty() && spec.chars().allMatch(Character::isDigit)){
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),Integer.parseInt(spec));
+        }
+        return UnixDomainSocketAddress.of(spec);
+    }
+
+    // false if another daemon already answers on the address; a port
+    // that's taken fails the bind instead
+    boolean serve()throws IOException{
+        ProtocolFamily family=address instanceof UnixDomainSocketAddress ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET;
+        if (family==StandardProtocolFamily.UNIX && isLive()){
+            System.err.println("[daemon] another daemon is already listening on "+address);
+            return false;
+        }
+        try (ServerSocketChannel server=ServerSocketChannel.open(family);
+             ExecutorService connections=Executors.newVirtualThreadPerTaskExecutor()){
+            if (family==StandardProtocolFamily.UNIX){
+                Path path=((UnixDomainSocketAddress) address).getPath();
+                // only a stale file is left, from a daemon that was killed
+                Files.deleteIfExists(path);
+                server.bind(address);
+                restrictToOwner(path);
+            }else {
+                server.bind(address);
+            }
+            System.err.println("[daemon] listening on "+address);
+            for (;;){
+                SocketChannel client=server.accept();
+                connections.execute(()->{
+                    try (client){
+                        handle(client);
+                    }catch (IOException|RuntimeException e){
+                        System.err.println("[daemon] "+e);
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean isLive(){
+        try {
+            SocketChannel.open(address).close();
+            return true;
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    // Scripts can do anything the daemon's user can, so only that user may
+    // connect to the socket file. Not every file system has POSIX
+    // permissions. A port has no owner: any local user can connect to it, so
+    // it's only for hosts where every user is trusted.
+    private static void restrictToOwner(Path path)throws IOException{
+        try {
+            Files.setPosixFilePermissions(path,PosixFilePermissions.fromString("rw-------"));
+        }catch (UnsupportedOperationException e){
+            System.err.println("[daemon] can't restrict access to "+path+" on this file system");
+        }
+    }
+
+    private void handle(SocketChannel client)throws IOException{
+        DataInputStream in=new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        DataOutputStream out=new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        byte kind;
+        try {
+            kind=in.readByte();
+        }catch (EOFException e){
+            // closed without a request, e.g. by a daemon checking for this one
+            return;
+        }
+        String text;
+        try {
+            text=readText(in);
+        }catch (IOException e){
+            // still answer, so the client exits instead of waiting
+            out.writeByte(ERR);
+            writeText(out,"Bad request: "+e.getMessage()+"\n");
+            out.writeByte(EXIT);
+            out.writeInt(64);
+            out.flush();
+            return;
+        }
+        PrintStream stdout=new PrintStream(new BufferedOutputStream(new FrameStream(out,OUT)),false,StandardCharsets.UTF_8);
+        PrintStream stderr=new PrintStream(new BufferedOutputStream(new FrameStream(out,ERR)),false,StandardCharsets.UTF_8);
+        int code;
+        try {
+            LoxContext context=new LoxContext(stdout,stderr,options);
+            code=kind==PATH ? context.runFile(Path.of(text)) : context.runSource(text);
+        }catch (IOException e){
+            stderr.println("Could not read "+text+": "+e);
+            code=66;
+        }catch (RuntimeException|StackOverflowError e){
+            // a broken script must not take the daemon down with it
+            stderr.println("Internal error: "+e);
+            code=70;
+        }
+        stdout.flush();
+        stderr.flush();
+        out.writeByte(EXIT);
+        out.writeInt(code);
+        out.flush();
+    }
+
+    static void writeText(DataOutputStream out,String text)throws IOException{
+        byte[] bytes=text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readText(DataInputStream in)throws IOException{
+        return new String(readBytes(in),StandardCharsets.UTF_8);
+    }
+
+    static byte[] readBytes(DataInputStream in)throws IOException{
+        int length=in.readInt();
+        if (length<0 || length>MAX_TEXT){
+            throw new IOException("bad text length "+length);
+        }
+        byte[] bytes=new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // Every write becomes one OUT or ERR frame on the shared connection.
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte stream;
+
+        FrameStream(DataOutputStream out,byte stream){
+            this.out=out;
+            this.stream=stream;
+        }
+
+        @Override
+        public void write(int b)throws IOException{
+            write(new byte[]{(byte) b},0,1);
+        }
+
+        @Override
+        public void write(byte[] bytes,int offset,int length)throws IOException{
+            if (length==0){
+                return;
+            }
+            out.writeByte(stream);
+            out.writeInt(length);
+            out.write(bytes,offset,length);
+        }
+
+        @Override
+        public void flush()throws IOException{
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package jlox;
+
+// One error found in a script. Lines and columns are 1-based and the range is
+// [column, endColumn) on that line; column 0 means the position isn't known,
+// as for errors from the VM, which only keeps line numbers.
+final class Diagnostic {
+    enum Kind {
+        // from the Scanner, Parser or Resolver; the script doesn't run
+        COMPILE,
+        // stops the script
+        RUNTIME
+    }
+
+    final Kind kind;
+    final int line;
+    final int column;
+    final int endColumn;
+    // the " at x'" part of a compile error's text
+    final String where;
+    final String message;
+
+    Diagnostic(Kind kind,int line,int column,int endColumn,String where,String message){
+        this.kind=kind;
+        this.line=line;
+        this.column=column;
+        this.endColumn=endColumn;
+        this.where=where;
+        this.message=message;
+    }
+
+    static Diagnostic at(Token token,String message){
+        int end=token.column==0 ? 0 : token.column+Math.max(token.lexeme.length(),1);
+        if (token.type==Tokentype.EOF){
+            return new Diagnostic(Kind.COMPILE,token.line,token.column,end," at end ",message);
+        }
+        return new Diagnostic(Kind.COMPILE,token.line,token.column,end," at "+token.lexeme+"'",message);
+    }
+
+    static Diagnostic runtime(RuntimeError error){
+        Token token=error.token;
+        if (token==null || token.column==0){
+            return new Diagnostic(Kind.RUNTIME,error.line,0,0,"",error.getMessage());
+        }
+        return new Diagnostic(Kind.RUNTIME,error.line,token.column,token.column+token.lexeme.length(),"",error.getMessage());
+    }
+
+    // the format jlox has always printed
+    void appendText(StringBuilder out){
+        if (kind==Kind.RUNTIME){
+            out.append(message).append("\n[line ").append(line).append("]\n");
+        }else {
+            out.append("[line ").append(line).append("] Error").append(where).append(": ").append(message).append('\n');
+        }
+    }
+
+    void appendJson(StringBuilder out){
+        out.append("{\"kind\":\"").append(kind.name().toLowerCase())
+                .append("\",\"line\":").append(line)
+                .append(",\"column\":").append(column)
+                .append(",\"endColumn\":").append(endColumn)
+                .append(",\"message\":");
+        appendJsonString(out,message);
+        out.append('}');
+    }
+
+    private static void appendJsonString(StringBuilder out,String text){
+        out.append('"');
+        for (int i=0;i<text.length();i++){
+            char c=text.charAt(i);
+            switch (c){
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c<0x20){
+                        out.append(String.format("\\u%04x",(int) c));
+                    }else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder out=new StringBuilder();
+        appendText(out);
+        return out.toString();
+    }
+}
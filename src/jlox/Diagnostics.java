@@ -0,0 +1,69 @@
+package jlox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects the diagnostics of a run instead of printing each one as it is
+// found, and writes them out in one go, in the classic text format or as a
+// JSON array.
+final class Diagnostics implements ErrorReporter {
+    enum Format { TEXT, JSON }
+
+    private final List<Diagnostic> pending=new ArrayList<>();
+    private boolean hadError=false;
+    private boolean hadRuntimeError=false;
+
+    @Override
+    public void report(Diagnostic diagnostic){
+        pending.add(diagnostic);
+        if (diagnostic.kind==Diagnostic.Kind.RUNTIME){
+            hadRuntimeError=true;
+        }else {
+            hadError=true;
+        }
+    }
+
+    boolean hadError(){
+        return hadError;
+    }
+
+    boolean hadRuntimeError(){
+        return hadRuntimeError;
+    }
+
+    // the REPL carries on after a line with syntax errors
+    void clearError(){
+        hadError=false;
+    }
+
+    // everything reported since the last call; nothing at all in TEXT
+    // format when there was nothing to report
+    String format(Format format){
+        StringBuilder out=new StringBuilder();
+        if (format==Format.JSON){
+            out.append('[');
+            for (int i=0;i<pending.size();i++){
+                if (i>0){
+                    out.append(',');
+                }
+                pending.get(i).appendJson(out);
+            }
+            out.append("]\n");
+        }else {
+            for (Diagnostic diagnostic:pending){
+                diagnostic.appendText(out);
+            }
+        }
+        pending.clear();
+        return out.toString();
+    }
+
+    void emit(PrintStream err,Format format){
+        if (pending.isEmpty() && format==Format.TEXT){
+            return;
+        }
+        err.print(format(format));
+        err.flush();
+    }
+}
@@ -1,39 +1,152 @@
 package jlox;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 
+// Values are stored NanBox-encoded in long arrays, with a parallel Object
+// array holding only strings and other references, so storing a number,
+// boolean or nil never boxes. The *Number methods read and write numbers
+// without going through Object at all.
 public class Environment {
-    private final Map<String,Object> values=new HashMap<>();
-    final Environment enclosing;
+    // shared by every environment with no globals or no slots, so a block
+    // environment only allocates its slots; reserve() replaces them
+    private static final long[] NO_VALUES=new long[0];
+    private static final Object[] NO_REFERENCES=new Object[0];
+    // globals are indexed by SymbolTable ID, locals by the slot the Resolver gave them
+    private long[] values=NO_VALUES;
+    private Object[] references=NO_REFERENCES;
+    private final long[] slots;
+    // null until a local holds a reference
+    private Object[] slotReferences;
+    // only changes when a recycled block environment is reused
+    Environment enclosing;
     Environment(){
         enclosing=null;
+        slots=NO_VALUES;
     }
     Environment(Environment enclosing){
+        this(enclosing,0);
+    }
+    Environment(Environment enclosing,int size){
         this.enclosing=enclosing;
+        this.slots=size==0 ? NO_VALUES : new long[size];
+        Arrays.fill(slots,NanBox.NIL);
     }
     Object get(Token name){
-        if (values.containsKey(name)){
-            return values.get(name.lexeme);
+        long bits=bits(name);
+        return NanBox.decode(bits,references[name.symbol]);
+    }
+    // the encoded value of a global
+    long bits(Token name){
+        if (name.symbol<values.length){
+            long bits=values[name.symbol];
+            if (bits!=NanBox.UNDEFINED){
+                return bits;
+            }
         }
-        if (enclosing!=null){
-            return enclosing.get(name);
+        throw new RuntimeError(name,"Undefined variable '"+name.lexeme+"'.");
+    }
+    void define(Token name,Object value){
+        define(name.symbol,value);
+    }
+    void define(int symbol,Object value){
+        reserve(symbol);
+        store(symbol,value);
+    }
+    void defineNumber(Token name,double value){
+        reserve(name.symbol);
+        values[name.symbol]=NanBox.number(value);
+        references[name.symbol]=null;
+    }
+    private void reserve(int symbol){
+        if (symbol>=values.length){
+            int length=values.length;
+            values=Arrays.copyOf(values,Math.max(symbol+1,length*2));
+            references=Arrays.copyOf(references,values.length);
+            Arrays.fill(values,length,values.length,NanBox.UNDEFINED);
         }
-        throw new RuntimeError(name,"Undefined variable"+name.lexeme+".");
     }
-    void define(String name,Object value){
-        values.put(name,value);
+    private void store(int symbol,Object value){
+        long bits=NanBox.encode(value);
+        values[symbol]=bits;
+        references[symbol]=bits==NanBox.REFERENCE ? value : null;
     }
-    void assign(Token name,Object value){
-        if (values.containsKey(value)){
-            values.put(name.lexeme,value);
-            return;
+    // every defined global, by name
+    void globals(SymbolTable symbols,Map<String,Object> into){
+        for (int symbol=0;symbol<values.length;symbol++){
+            if (values[symbol]!=NanBox.UNDEFINED){
+                into.put(symbols.name(symbol),NanBox.decode(values[symbol],references[symbol]));
+            }
         }
-        if (enclosing!=null){
-            enclosing.assign(name,value);
-            return;
+    }
+    void assign(Token name,Object value){
+        bits(name);
+        store(name.symbol,value);
+    }
+    void assignNumber(Token name,double value){
+        bits(name);
+        values[name.symbol]=NanBox.number(value);
+        references[name.symbol]=null;
+    }
+
+    int size(){
+        return slots.length;
+    }
+    void reuse(Environment enclosing){
+        this.enclosing=enclosing;
+    }
+    // so a spare environment doesn't keep old values alive
+    void clear(){
+        Arrays.fill(slots,NanBox.NIL);
+        if (slotReferences!=null){
+            Arrays.fill(slotReferences,null);
         }
-        throw new RuntimeError(name,"Undefined variable"+name.lexeme+".");
+    }
 
+    Object getAt(int depth,int slot){
+        Environment environment=ancestor(depth);
+        long bits=environment.slots[slot];
+        return NanBox.decode(bits,bits==NanBox.REFERENCE ? environment.slotReferences[slot] : null);
+    }
+    // the encoded value of a local
+    long bitsAt(int depth,int slot){
+        return ancestor(depth).slots[slot];
+    }
+    void defineAt(int slot,Object value){
+        storeAt(slot,value);
+    }
+    void defineNumberAt(int slot,double value){
+        storeNumberAt(slot,value);
+    }
+    void assignAt(int depth,int slot,Object value){
+        ancestor(depth).storeAt(slot,value);
+    }
+    void assignNumberAt(int depth,int slot,double value){
+        ancestor(depth).storeNumberAt(slot,value);
+    }
+    private void storeAt(int slot,Object value){
+        long bits=NanBox.encode(value);
+        slots[slot]=bits;
+        if (bits==NanBox.REFERENCE){
+            if (slotReferences==null){
+                slotReferences=new Object[slots.length];
+            }
+            slotReferences[slot]=value;
+        }else if (slotReferences!=null){
+            slotReferences[slot]=null;
+        }
+    }
+    private void storeNumberAt(int slot,double value){
+        slots[slot]=NanBox.number(value);
+        if (slotReferences!=null){
+            slotReferences[slot]=null;
+        }
+    }
+    private Environment ancestor(int depth){
+        Environment environment=this;
+        for (int i=0;i<depth;i++){
+            environment=environment.enclosing;
+        }
+        return environment;
     }
 }
@@ -0,0 +1,23 @@
+package jlox;
+
+// Where the Scanner, Parser, Resolver and Interpreter/VM send the errors they
+// find. Every LoxContext collects its own Diagnostics, so scripts running side
+// by side keep their errors and error flags to themselves.
+interface ErrorReporter {
+    // for pieces used on their own, such as the benchmarks
+    ErrorReporter STDERR=diagnostic->System.err.print(diagnostic);
+
+    void report(Diagnostic diagnostic);
+
+    default void error(int line,int column,String message){
+        report(new Diagnostic(Diagnostic.Kind.COMPILE,line,column,column+1,"",message));
+    }
+
+    default void error(Token token,String message){
+        report(Diagnostic.at(token,message));
+    }
+
+    default void runtimeError(RuntimeError error){
+        report(Diagnostic.runtime(error));
+    }
+}
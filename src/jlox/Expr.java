@@ -3,11 +3,15 @@ package jlox;
 import java.util.List;
 
 abstract class Expr {
+  static final int SHAPE = -1182756313;
+
   interface Visitor<R> {
  R visitAssignExpr(Assign expr);
  R visitBinaryExpr(Binary expr);
  R visitGroupingExpr(Grouping expr);
+ R visitInvariantExpr(Invariant expr);
  R visitLiteralExpr(Literal expr);
+ R visitLogicalExpr(Logical expr);
  R visitUnaryExpr(Unary expr);
  R visitVariableExpr(Variable expr);
 }
@@ -24,6 +28,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth = -1;
+    int slot = -1;
   }
  static class Binary extends Expr{
     Binary(Expr left, Token operator, Expr right) {
@@ -40,6 +46,7 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    Specialization specialization = Specialization.UNINITIALIZED;
   }
  static class Grouping extends Expr{
     Grouping(Expr expression) {
@@ -53,6 +60,20 @@ abstract class Expr {
 
     final Expr expression;
   }
+ static class Invariant extends Expr{
+    Invariant(Expr expression) {
+      this.expression = expression;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInvariantExpr(this);
+    }
+
+    final Expr expression;
+    Object value;
+    boolean cached;
+  }
  static class Literal extends Expr{
     Literal(Object value) {
       this.value = value;
@@ -65,6 +86,22 @@ abstract class Expr {
 
     final Object value;
   }
+ static class Logical extends Expr{
+    Logical(Expr left, Token operator, Expr right) {
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLogicalExpr(this);
+    }
+
+    final Expr left;
+    final Token operator;
+    final Expr right;
+  }
  static class Unary extends Expr{
     Unary(Token operator, Expr right) {
       this.operator = operator;
@@ -90,6 +127,8 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth = -1;
+    int slot = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
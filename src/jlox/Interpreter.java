@@ -3,28 +3,92 @@ package jlox;
 import java.util.List;
 
 public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
-    private Environment environment=new Environment();
+    final Environment globals=new Environment();
+    private Environment environment=globals;
+    private final Environment[] spare=new Environment[32];
+    private int spareCount=0;
+    final OutputSink out;
+    private final ErrorReporter reporter;
+
+    Interpreter(){
+        this(new OutputSink(System.out,OutputSink.FlushPolicy.NEWLINE));
+    }
+
+    Interpreter(OutputSink out){
+        this(out,ErrorReporter.STDERR);
+    }
+
+    Interpreter(OutputSink out,ErrorReporter reporter){
+        this.out=out;
+        this.reporter=reporter;
+    }
     void interpret(List<Stmt> statement){
+            // checked once per run, so statements aren't timed for nothing
+            boolean timed=LoxEvents.SlowStatementEvent.TYPE.isEnabled();
             try {
                for (Stmt stmt:statement){
+                   if (!timed){
+                       execute(stmt);
+                       continue;
+                   }
+                   LoxEvents.SlowStatementEvent event=new LoxEvents.SlowStatementEvent();
+                   event.begin();
                    execute(stmt);
+                   event.end();
+                   if (event.shouldCommit()){
+                       event.line=line(stmt);
+                       event.commit();
+                   }
                }
             }catch (RuntimeError error){
-                    jlox.runtimeError(error);
+                    out.flush();
+                    reporter.runtimeError(error);
             }
     }
 
 
-    private void execute(Stmt stmt){
+    void execute(Stmt stmt){
         stmt.accept(this);
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt){
-        executeBlock(stmt.statements,new Environment(environment));
+        if (stmt.slots==0){
+            // declares nothing, so the Resolver gave it no scope
+            for (Stmt statement:stmt.statements){
+                execute(statement);
+            }
+            return null;
+        }
+        Environment block=obtain(stmt.slots);
+        try {
+            executeBlock(stmt.statements,block);
+        }finally {
+            release(block);
+        }
         return null;
     }
 
+    // Nothing can hold on to a block's environment once the block is done
+    // (there are no closures), so it goes back here to be reused by the next
+    // block instead of becoming garbage.
+    private Environment obtain(int size){
+        if (spareCount>0 && spare[spareCount-1].size()>=size){
+            Environment block=spare[--spareCount];
+            spare[spareCount]=null;
+            block.reuse(environment);
+            return block;
+        }
+        return new Environment(environment,size);
+    }
+
+    private void release(Environment block){
+        if (spareCount<spare.length){
+            block.clear();
+            spare[spareCount++]=block;
+        }
+    }
+
     void executeBlock(List<Stmt> statements,Environment environment){
         Environment previous=this.environment;
        try{
@@ -39,10 +103,39 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        // evaluate expression from left to right
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        switch (expr.specialization) {
+            case NUMBER:
+                try {
+                    if (isArithmetic(expr.operator.type)) {
+                        return binaryNumber(expr);
+                    }
+                    return compareNumber(expr);
+                } catch (UnexpectedResult deoptimized) {
+                    return deoptimized.result;
+                }
+            case STRING: {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                if (left instanceof LoxString && right instanceof LoxString) {
+                    return LoxString.concat((LoxString) left, (LoxString) right);
+                }
+                expr.specialization = Specialization.GENERIC;
+                return binaryGeneric(expr, left, right);
+            }
+            case UNINITIALIZED: {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                Object result = binaryGeneric(expr, left, right);
+                expr.specialization = specialize(expr.operator.type, left, right);
+                return result;
+            }
+            default:
+                // evaluate expression from left to right
+                return binaryGeneric(expr, evaluate(expr.left), evaluate(expr.right));
+        }
+    }
 
+    private Object binaryGeneric(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
@@ -73,8 +166,8 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double){
                     return (double) left + (double) right;
                 }
-                if (left instanceof String && right instanceof String){
-                    return (String) left + (String) right;
+                if (left instanceof LoxString && right instanceof LoxString){
+                    return LoxString.concat((LoxString) left,(LoxString) right);
                 }
                throw new RuntimeError(expr.operator,"Operand must be two numbers or two string");
 
@@ -83,16 +176,155 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
         return null;
     }
 
+    private static Specialization specialize(Tokentype operator, Object left, Object right) {
+        if (operator == Tokentype.EQUAL_EQUAL || operator == Tokentype.BANG_EQUAL) {
+            return Specialization.GENERIC;
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return Specialization.NUMBER;
+        }
+        if (operator == Tokentype.PLUS && left instanceof LoxString && right instanceof LoxString) {
+            return Specialization.STRING;
+        }
+        return Specialization.GENERIC;
+    }
+
+    private static boolean isArithmetic(Tokentype operator) {
+        return operator == Tokentype.PLUS || operator == Tokentype.MINUS
+                || operator == Tokentype.STAR || operator == Tokentype.SLASH;
+    }
+
+    // Unboxed evaluation for subtrees expected to produce a number. Throws
+    // UnexpectedResult with the actual value if one doesn't.
+    double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.specialization == Specialization.NUMBER && isArithmetic(binary.operator.type)) {
+                return binaryNumber(binary);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == Tokentype.MINUS) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            try {
+                return -evaluateNumber(unary.right);
+            } catch (UnexpectedResult e) {
+                checkNumberOperand(unary.operator, e.result);
+                return -(double) e.result;
+            }
+        } else if (expr instanceof Expr.Variable) {
+            // straight from the environment's encoding, without boxing
+            Expr.Variable variable = (Expr.Variable) expr;
+            long bits = variable.depth < 0 ? globals.bits(variable.name)
+                    : environment.bitsAt(variable.depth, variable.slot);
+            if (NanBox.isNumber(bits)) {
+                return NanBox.asNumber(bits);
+            }
+            throw new UnexpectedResult(evaluate(expr));
+        }
+        Object value = evaluate(expr);
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new UnexpectedResult(value);
+    }
+
+    // whether evaluateNumber takes an unboxed path for the expression
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return binary.specialization == Specialization.NUMBER && isArithmetic(binary.operator.type);
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isNumeric(((Expr.Grouping) expr).expression);
+        }
+        return expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == Tokentype.MINUS;
+    }
+
+    private double binaryNumber(Expr.Binary expr) {
+        double left;
+        double right;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedResult e) {
+            throw deoptimize(expr, e.result, evaluate(expr.right));
+        }
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedResult e) {
+            throw deoptimize(expr, left, e.result);
+        }
+        switch (expr.operator.type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            case SLASH: return left / right;
+        }
+        throw new IllegalStateException("Not an arithmetic operator " + expr.operator.type);
+    }
+
+    private boolean compareNumber(Expr.Binary expr) {
+        double left;
+        double right;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedResult e) {
+            throw deoptimize(expr, e.result, evaluate(expr.right));
+        }
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedResult e) {
+            throw deoptimize(expr, left, e.result);
+        }
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+        }
+        throw new IllegalStateException("Not a comparison operator " + expr.operator.type);
+    }
+
+    // A type guard failed: drop the node back to the generic path for good and
+    // finish this evaluation there with the operands already computed.
+    private UnexpectedResult deoptimize(Expr.Binary expr, Object left, Object right) {
+        expr.specialization = Specialization.GENERIC;
+        return new UnexpectedResult(binaryGeneric(expr, left, right));
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
     }
 
+    // computed at most once per run of the loop it was hoisted out of
+    @Override
+    public Object visitInvariantExpr(Expr.Invariant expr) {
+        if (!expr.cached){
+            expr.value=evaluate(expr.expression);
+            expr.cached=true;
+        }
+        return expr.value;
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
     }
 
+    @Override
+    public Object visitLogicalExpr(Expr.Logical expr) {
+        Object left=evaluate(expr.left);
+        if (expr.operator.type==Tokentype.OR){
+            if (isTruthy(left)){
+                return left;
+            }
+        }else if (!isTruthy(left)){
+            return left;
+        }
+        return evaluate(expr.right);
+    }
+
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
@@ -110,15 +342,18 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        if (expr.depth<0){
+            return globals.get(expr.name);
+        }
+        return environment.getAt(expr.depth,expr.slot);
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
     //nil and false are falsy and everything other is truthy
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) {
             return false;
         }
@@ -128,7 +363,7 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object a,Object b){
+    static boolean isEqual(Object a,Object b){
         if (a==null && b==null){
             return true;
         }
@@ -137,7 +372,7 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
         }
         return a.equals(b);
     }
-    private String stringify(Object object){
+    static String stringify(Object object){
         if (object==null){
             return "nil";
         }
@@ -168,31 +403,160 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            assign((Expr.Assign) stmt.expression);
+            return null;
+        }
         evaluate(stmt.expression);
         return null;
     }
 
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        if (isTruthy(evaluate(stmt.condition))){
+            execute(stmt.thenBranch);
+        }else if (stmt.elseBranch!=null){
+            execute(stmt.elseBranch);
+        }
+        return null;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value=evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        out.print(value);
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer!=null && isNumeric(stmt.initializer)){
+            double number;
+            try {
+                number=evaluateNumber(stmt.initializer);
+            }catch (UnexpectedResult e){
+                define(stmt,e.result);
+                return null;
+            }
+            if (stmt.slot<0){
+                globals.defineNumber(stmt.name,number);
+            }else {
+                environment.defineNumberAt(stmt.slot,number);
+            }
+            return null;
+        }
         Object value=null;
         if (stmt.initializer!=null){
             value=evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme,value);
+        define(stmt,value);
+        return null;
+    }
+
+    private void define(Stmt.Var stmt,Object value){
+        if (stmt.slot<0){
+            globals.define(stmt.name,value);
+        }else {
+            environment.defineAt(stmt.slot,value);
+        }
+    }
+
+    // A block body takes its environment from the spares on every iteration
+    // and hands it back at the end, so iterating allocates nothing.
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        if (stmt.invariants!=null){
+            for (Expr.Invariant invariant:stmt.invariants){
+                invariant.cached=false;
+            }
+        }
+        while (isTruthy(evaluate(stmt.condition))){
+            execute(stmt.body);
+        }
         return null;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr){
         Object value=evaluate(expr.value);
-        environment.assign(expr.name,value);
+        assign(expr,value);
         return value;
     }
+
+    private void assign(Expr.Assign expr,Object value){
+        if (expr.depth<0){
+            globals.assign(expr.name,value);
+        }else {
+            environment.assignAt(expr.depth,expr.slot,value);
+        }
+    }
+
+    // An assignment used as a statement has no result to box, so a number
+    // goes from evaluateNumber into the environment as it is.
+    private void assign(Expr.Assign expr){
+        if (!isNumeric(expr.value)){
+            evaluate(expr);
+            return;
+        }
+        double number;
+        try {
+            number=evaluateNumber(expr.value);
+        }catch (UnexpectedResult e){
+            assign(expr,e.result);
+            return;
+        }
+        if (expr.depth<0){
+            globals.assignNumber(expr.name,number);
+        }else {
+            environment.assignNumberAt(expr.depth,expr.slot,number);
+        }
+    }
+
+    // source line of a node, -1 for nodes without a token (e.g. literals)
+    static int line(Stmt stmt){
+        if (stmt instanceof Stmt.Var){
+            return ((Stmt.Var) stmt).name.line;
+        }
+        if (stmt instanceof Stmt.Expression){
+            return line(((Stmt.Expression) stmt).expression);
+        }
+        if (stmt instanceof Stmt.Print){
+            return line(((Stmt.Print) stmt).expression);
+        }
+        if (stmt instanceof Stmt.If){
+            return line(((Stmt.If) stmt).condition);
+        }
+        if (stmt instanceof Stmt.While){
+            return line(((Stmt.While) stmt).condition);
+        }
+        if (stmt instanceof Stmt.Block && !((Stmt.Block) stmt).statements.isEmpty()){
+            return line(((Stmt.Block) stmt).statements.get(0));
+        }
+        return -1;
+    }
+
+    static int line(Expr expr){
+        if (expr instanceof Expr.Binary){
+            return ((Expr.Binary) expr).operator.line;
+        }
+        if (expr instanceof Expr.Unary){
+            return ((Expr.Unary) expr).operator.line;
+        }
+        if (expr instanceof Expr.Variable){
+            return ((Expr.Variable) expr).name.line;
+        }
+        if (expr instanceof Expr.Assign){
+            return ((Expr.Assign) expr).name.line;
+        }
+        if (expr instanceof Expr.Logical){
+            return ((Expr.Logical) expr).operator.line;
+        }
+        if (expr instanceof Expr.Grouping){
+            return line(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Invariant){
+            return line(((Expr.Invariant) expr).expression);
+        }
+        return -1;
+    }
 }
@@ -0,0 +1,701 @@
+package jlox;
+// Compiles a resolved statement list into a JVM class, defined as a hidden
+// class so it is unloaded again once its CompiledScript is unreachable.
+//  - locals become JVM locals; a local that is only ever given numbers is a
+//    primitive double
+//  - globals stay in the Interpreter's Environment, looked up by symbol
+//  - an operator whose operands are known to be numbers is a single JVM
+//    instruction; any other calls one of the helpers at the bottom, which
+//    raise the same RuntimeErrors as the Interpreter
+// Invariant nodes are compiled as their expression; hoisting is left to
+// HotSpot. A script that doesn't fit in one JVM method gets null, and stays
+// with the Interpreter.
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static jlox.ClassFileWriter.*;
+
+final class Jit implements Expr.Visitor<Void>,Stmt.Visitor<Void> {
+    // how a value sits on the JVM stack
+    private static final int NUMBER=0, BOOLEAN=1, OBJECT=2;
+    // parameters of Body.run
+    private static final int GLOBALS=1, OUT=2, CONSTANTS=3, FIRST_LOCAL=4;
+    private static final String SELF="jlox/Jit", ENVIRONMENT="jlox/Environment", INTERPRETER="jlox/Interpreter";
+    private static final String OBJECT_TYPE="Ljava/lang/Object;", TOKEN_TYPE="Ljlox/Token;";
+    private static final String BINARY_NUMBER="("+OBJECT_TYPE+OBJECT_TYPE+TOKEN_TYPE+")D";
+    private static final String COMPARISON="("+OBJECT_TYPE+OBJECT_TYPE+TOKEN_TYPE+")Z";
+
+    private final Locals locals=new Locals();
+    // locals only ever given numbers
+    private final Set<Stmt.Var> numeric=new HashSet<>();
+    private final Map<Stmt.Var,Integer> jvmLocals=new IdentityHashMap<>();
+    private final Map<Expr,Integer> types=new IdentityHashMap<>();
+    private final List<Object> constants=new ArrayList<>();
+    private final Map<Object,Integer> constantIndex=new IdentityHashMap<>();
+    private ClassFileWriter writer;
+    private Code code;
+
+    private Jit(){
+    }
+
+    // null if the script is too big to compile
+    static CompiledScript compile(List<Stmt> statements){
+        try {
+            return new Jit().define(statements);
+        }catch (TooLarge e){
+            return null;
+        }
+    }
+
+    private CompiledScript define(List<Stmt> statements){
+        locals.scan(statements);
+        inferTypes();
+        int next=FIRST_LOCAL;
+        for (Stmt.Var local:locals.declarations){
+            jvmLocals.put(local,next);
+            next+=numeric.contains(local) ? 2 : 1;
+        }
+        writer=new ClassFileWriter("jlox/CompiledLox","java/lang/Object","jlox/CompiledScript$Body");
+        Code constructor=new Code(1);
+        constructor.local(ALOAD,0,1);
+        constructor.op2(INVOKESPECIAL,writer.methodRef("java/lang/Object","<init>","()V"),-1);
+        constructor.op(RETURN,0);
+        writer.method(ACC_PUBLIC,"<init>","()V",constructor);
+
+        code=new Code(next);
+        // every local is set up front so the verifier never sees one unset
+        for (Stmt.Var local:locals.declarations){
+            if (numeric.contains(local)){
+                code.op(DCONST_0,2);
+                code.local(DSTORE,jvmLocals.get(local),-2);
+            }else {
+                code.op(ACONST_NULL,1);
+                code.local(ASTORE,jvmLocals.get(local),-1);
+            }
+        }
+        for (Stmt statement:statements){
+            statement.accept(this);
+        }
+        code.op(RETURN,0);
+        writer.method(ACC_PUBLIC,"run","(Ljlox/Environment;Ljlox/OutputSink;[Ljava/lang/Object;)V",code);
+        try {
+            MethodHandles.Lookup lookup=MethodHandles.lookup().defineHiddenClass(writer.toByteArray(),true);
+            CompiledScript.Body body=(CompiledScript.Body) lookup.lookupClass().getDeclaredConstructor().newInstance();
+            return new CompiledScript(body,constants.toArray());
+        }catch (ReflectiveOperationException e){
+            throw new IllegalStateException("could not load compiled script",e);
+        }
+    }
+
+    // Starts from every local being numeric and takes back the ones given
+    // something else, until nothing changes.
+    private void inferTypes(){
+        numeric.addAll(locals.declarations);
+        boolean changed=true;
+        while (changed){
+            changed=false;
+            types.clear();
+            for (Stmt.Var local:locals.declarations){
+                if (!numeric.contains(local)){
+                    continue;
+                }
+                for (Expr value:locals.values.get(local)){
+                    if (value==null || type(value)!=NUMBER){
+                        numeric.remove(local);
+                        changed=true;
+                        break;
+                    }
+                }
+            }
+        }
+        types.clear();
+    }
+
+    private int type(Expr expr){
+        Integer type=types.get(expr);
+        if (type==null){
+            type=computeType(expr);
+            types.put(expr,type);
+        }
+        return type;
+    }
+
+    private int computeType(Expr expr){
+        if (expr instanceof Expr.Literal){
+            Object value=((Expr.Literal) expr).value;
+            return value instanceof Double ? NUMBER : value instanceof Boolean ? BOOLEAN : OBJECT;
+        }
+        if (expr instanceof Expr.Variable || expr instanceof Expr.Assign){
+            Stmt.Var local=locals.references.get(expr);
+            return local!=null && numeric.contains(local) ? NUMBER : OBJECT;
+        }
+        if (expr instanceof Expr.Binary){
+            Expr.Binary binary=(Expr.Binary) expr;
+            switch (binary.operator.type){
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    // a number, or a runtime error
+                    return NUMBER;
+                case PLUS:
+                    return type(binary.left)==NUMBER && type(binary.right)==NUMBER ? NUMBER : OBJECT;
+                default:
+                    return BOOLEAN;
+            }
+        }
+        if (expr instanceof Expr.Unary){
+            return ((Expr.Unary) expr).operator.type==Tokentype.MINUS ? NUMBER : BOOLEAN;
+        }
+        if (expr instanceof Expr.Logical){
+            Expr.Logical logical=(Expr.Logical) expr;
+            return type(logical.left)==BOOLEAN && type(logical.right)==BOOLEAN ? BOOLEAN : OBJECT;
+        }
+        if (expr instanceof Expr.Grouping){
+            return type(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Invariant){
+            return type(((Expr.Invariant) expr).expression);
+        }
+        throw new IllegalStateException("Unexpected expression "+expr.getClass().getSimpleName());
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement:stmt.statements){
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        if (type(stmt.expression)==NUMBER){
+            code.op(POP2,-2);
+        }else {
+            code.op(POP,-1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label otherwise=code.label();
+        Label end=code.label();
+        condition(stmt.condition);
+        code.jump(IFEQ,otherwise,-1);
+        stmt.thenBranch.accept(this);
+        code.jump(GOTO,end,0);
+        code.mark(otherwise);
+        if (stmt.elseBranch!=null){
+            stmt.elseBranch.accept(this);
+        }
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.local(ALOAD,OUT,1);
+        compile(stmt.expression,OBJECT);
+        code.op2(INVOKEVIRTUAL,writer.methodRef("jlox/OutputSink","print","("+OBJECT_TYPE+")V"),-2);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot<0){
+            code.local(ALOAD,GLOBALS,1);
+            constant(stmt.name,"jlox/Token");
+            if (stmt.initializer==null){
+                code.op(ACONST_NULL,1);
+            }else {
+                compile(stmt.initializer,OBJECT);
+            }
+            code.op2(INVOKEVIRTUAL,writer.methodRef(ENVIRONMENT,"define","("+TOKEN_TYPE+OBJECT_TYPE+")V"),-3);
+        }else if (numeric.contains(stmt)){
+            compile(stmt.initializer,NUMBER);
+            code.local(DSTORE,jvmLocals.get(stmt),-2);
+        }else {
+            if (stmt.initializer==null){
+                code.op(ACONST_NULL,1);
+            }else {
+                compile(stmt.initializer,OBJECT);
+            }
+            code.local(ASTORE,jvmLocals.get(stmt),-1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label start=code.label();
+        Label end=code.label();
+        code.mark(start);
+        condition(stmt.condition);
+        code.jump(IFEQ,end,-1);
+        stmt.body.accept(this);
+        code.jump(GOTO,start,0);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        Stmt.Var local=locals.references.get(expr);
+        if (local==null){
+            code.local(ALOAD,GLOBALS,1);
+            constant(expr.name,"jlox/Token");
+            compile(expr.value,OBJECT);
+            code.op(DUP_X2,1);
+            code.op2(INVOKEVIRTUAL,writer.methodRef(ENVIRONMENT,"assign","("+TOKEN_TYPE+OBJECT_TYPE+")V"),-3);
+        }else if (numeric.contains(local)){
+            compile(expr.value,NUMBER);
+            code.op(DUP2,2);
+            code.local(DSTORE,jvmLocals.get(local),-2);
+        }else {
+            compile(expr.value,OBJECT);
+            code.op(DUP,1);
+            code.local(ASTORE,jvmLocals.get(local),-1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        boolean numbers=type(expr.left)==NUMBER && type(expr.right)==NUMBER;
+        switch (expr.operator.type){
+            case MINUS: arithmetic(expr,numbers,DSUB,"subtract"); break;
+            case STAR: arithmetic(expr,numbers,DMUL,"multiply"); break;
+            case SLASH: arithmetic(expr,numbers,DDIV,"divide"); break;
+            case PLUS:
+                if (numbers){
+                    arithmetic(expr,true,DADD,null);
+                }else {
+                    operands(expr,OBJECT);
+                    constant(expr.operator,"jlox/Token");
+                    code.op2(INVOKESTATIC,writer.methodRef(SELF,"add","("+OBJECT_TYPE+OBJECT_TYPE+TOKEN_TYPE+")"+OBJECT_TYPE),-2);
+                }
+                break;
+            // NaN compares false either way round, hence dcmpl or dcmpg
+            case GREATER: comparison(expr,numbers,DCMPL,IFGT,"greater"); break;
+            case GREATER_EQUAL: comparison(expr,numbers,DCMPL,IFGE,"greaterEqual"); break;
+            case LESS: comparison(expr,numbers,DCMPG,IFLT,"less"); break;
+            case LESS_EQUAL: comparison(expr,numbers,DCMPG,IFLE,"lessEqual"); break;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                if (numbers){
+                    operands(expr,NUMBER);
+                    code.op2(INVOKESTATIC,writer.methodRef(SELF,"equal","(DD)Z"),-3);
+                }else if (type(expr.left)==BOOLEAN && type(expr.right)==BOOLEAN){
+                    // 1 where they differ
+                    operands(expr,BOOLEAN);
+                    code.op(IXOR,-1);
+                    if (expr.operator.type==Tokentype.EQUAL_EQUAL){
+                        not();
+                    }
+                    break;
+                }else {
+                    operands(expr,OBJECT);
+                    code.op2(INVOKESTATIC,writer.methodRef(INTERPRETER,"isEqual","("+OBJECT_TYPE+OBJECT_TYPE+")Z"),-1);
+                }
+                if (expr.operator.type==Tokentype.BANG_EQUAL){
+                    not();
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected binary operator "+expr.operator.type);
+        }
+        return null;
+    }
+
+    private void arithmetic(Expr.Binary expr,boolean numbers,int opcode,String helper){
+        if (numbers){
+            operands(expr,NUMBER);
+            code.op(opcode,-2);
+        }else {
+            operands(expr,OBJECT);
+            constant(expr.operator,"jlox/Token");
+            code.op2(INVOKESTATIC,writer.methodRef(SELF,helper,BINARY_NUMBER),-1);
+        }
+    }
+
+    private void comparison(Expr.Binary expr,boolean numbers,int compare,int test,String helper){
+        if (numbers){
+            operands(expr,NUMBER);
+            code.op(compare,-3);
+            Label yes=code.label();
+            Label end=code.label();
+            code.jump(test,yes,-1);
+            code.op(ICONST_0,1);
+            code.jump(GOTO,end,0);
+            code.mark(yes);
+            // reached with the stack as it was before the ICONST_0
+            code.stack(-1);
+            code.op(ICONST_1,1);
+            code.mark(end);
+        }else {
+            operands(expr,OBJECT);
+            constant(expr.operator,"jlox/Token");
+            code.op2(INVOKESTATIC,writer.methodRef(SELF,helper,COMPARISON),-2);
+        }
+    }
+
+    private void operands(Expr.Binary expr,int as){
+        compile(expr.left,as);
+        compile(expr.right,as);
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value=expr.value;
+        if (value==null){
+            code.op(ACONST_NULL,1);
+        }else if (value instanceof Double){
+            code.op2(LDC2_W,writer.doubleConstant((double) value),2);
+        }else if (value instanceof Boolean){
+            code.op((boolean) value ? ICONST_1 : ICONST_0,1);
+        }else {
+            constant(value,null);
+        }
+        return null;
+    }
+
+    // evaluates to whichever operand decided it, as in the Interpreter
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        int as=type(expr);
+        Label end=code.label();
+        int test=expr.operator.type==Tokentype.AND ? IFEQ : IFNE;
+        compile(expr.left,as);
+        code.op(DUP,1);
+        if (as==OBJECT){
+            truthy();
+        }
+        code.jump(test,end,-1);
+        code.op(POP,-1);
+        compile(expr.right,as);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        int operand=type(expr.right);
+        if (expr.operator.type==Tokentype.MINUS){
+            if (operand==NUMBER){
+                compile(expr.right);
+                code.op(DNEG,0);
+            }else {
+                compile(expr.right,OBJECT);
+                constant(expr.operator,"jlox/Token");
+                code.op2(INVOKESTATIC,writer.methodRef(SELF,"negate","("+OBJECT_TYPE+TOKEN_TYPE+")D"),0);
+            }
+            return null;
+        }
+        condition(expr.right);
+        not();
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        Stmt.Var local=locals.references.get(expr);
+        if (local==null){
+            code.local(ALOAD,GLOBALS,1);
+            constant(expr.name,"jlox/Token");
+            code.op2(INVOKEVIRTUAL,writer.methodRef(ENVIRONMENT,"get","("+TOKEN_TYPE+")"+OBJECT_TYPE),-1);
+        }else if (numeric.contains(local)){
+            code.local(DLOAD,jvmLocals.get(local),2);
+        }else {
+            code.local(ALOAD,jvmLocals.get(local),1);
+        }
+        return null;
+    }
+
+    // leaves the value as its own type
+    private void compile(Expr expr){
+        expr.accept(this);
+    }
+
+    private void compile(Expr expr,int as){
+        expr.accept(this);
+        int type=type(expr);
+        if (type==as){
+            return;
+        }
+        if (as!=OBJECT){
+            throw new IllegalStateException("Can't unbox to "+as);
+        }
+        if (type==NUMBER){
+            code.op2(INVOKESTATIC,writer.methodRef("java/lang/Double","valueOf","(D)Ljava/lang/Double;"),-1);
+        }else {
+            code.op2(INVOKESTATIC,writer.methodRef("java/lang/Boolean","valueOf","(Z)Ljava/lang/Boolean;"),0);
+        }
+    }
+
+    // leaves 1 if the value is truthy, 0 if not
+    private void condition(Expr expr){
+        compile(expr);
+        switch (type(expr)){
+            case NUMBER:
+                // numbers are always truthy
+                code.op(POP2,-2);
+                code.op(ICONST_1,1);
+                break;
+            case OBJECT:
+                truthy();
+                break;
+        }
+    }
+
+    private void truthy(){
+        code.op2(INVOKESTATIC,writer.methodRef(INTERPRETER,"isTruthy","("+OBJECT_TYPE+")Z"),0);
+    }
+
+    private void not(){
+        code.op(ICONST_1,1);
+        code.op(IXOR,-1);
+    }
+
+    // loads constants[index], cast to type unless that is null
+    private void constant(Object value,String type){
+        Integer index=constantIndex.get(value);
+        if (index==null){
+            index=constants.size();
+            constants.add(value);
+            constantIndex.put(value,index);
+        }
+        code.local(ALOAD,CONSTANTS,1);
+        if (index<=5){
+            code.op(ICONST_0+index,1);
+        }else if (index<=Byte.MAX_VALUE){
+            code.op1(BIPUSH,index,1);
+        }else if (index<=Short.MAX_VALUE){
+            code.op2(SIPUSH,index,1);
+        }else {
+            code.op2(LDC_W,writer.intConstant(index),1);
+        }
+        code.op(AALOAD,-1);
+        if (type!=null){
+            code.op2(CHECKCAST,writer.classRef(type),0);
+        }
+    }
+
+    // Finds the declaration each resolved local reference points to, and
+    // every value stored into each local (null for a declaration without an
+    // initializer).
+    private static class Locals implements Expr.Visitor<Void>,Stmt.Visitor<Void> {
+        final List<Stmt.Var> declarations=new ArrayList<>();
+        final Map<Expr,Stmt.Var> references=new IdentityHashMap<>();
+        final Map<Stmt.Var,List<Expr>> values=new IdentityHashMap<>();
+        // the declarations of the blocks around the node, innermost last
+        private final List<Stmt.Var[]> scopes=new ArrayList<>();
+
+        void scan(List<Stmt> statements){
+            for (Stmt statement:statements){
+                statement.accept(this);
+            }
+        }
+
+        private Stmt.Var resolve(int depth,int slot){
+            return depth<0 ? null : scopes.get(scopes.size()-1-depth)[slot];
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            if (stmt.slots>0){
+                scopes.add(new Stmt.Var[stmt.slots]);
+            }
+            scan(stmt.statements);
+            if (stmt.slots>0){
+                scopes.remove(scopes.size()-1);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch!=null){
+                stmt.elseBranch.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer!=null){
+                stmt.initializer.accept(this);
+            }
+            if (stmt.slot>=0){
+                scopes.get(scopes.size()-1)[stmt.slot]=stmt;
+                declarations.add(stmt);
+                List<Expr> stored=new ArrayList<>();
+                stored.add(stmt.initializer);
+                values.put(stmt,stored);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+            Stmt.Var local=resolve(expr.depth,expr.slot);
+            if (local!=null){
+                references.put(expr,local);
+                values.get(local).add(expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            Stmt.Var local=resolve(expr.depth,expr.slot);
+            if (local!=null){
+                references.put(expr,local);
+            }
+            return null;
+        }
+    }
+
+    // Called from compiled code for operands that aren't known to be numbers.
+
+    static double subtract(Object left,Object right,Token operator){
+        checkNumbers(left,right,operator);
+        return (double) left-(double) right;
+    }
+
+    static double multiply(Object left,Object right,Token operator){
+        checkNumbers(left,right,operator);
+        return (double) left*(double) right;
+    }
+
+    static double divide(Object left,Object right,Token operator){
+        checkNumbers(left,right,operator);
+        return (double) left/(double) right;
+    }
+
+    static Object add(Object left,Object right,Token operator){
+        if (left instanceof Double && right instanceof Double){
+            return (double) left+(double) right;
+        }
+        if (left instanceof LoxString && right instanceof LoxString){
+            return LoxString.concat((LoxString) left,(LoxString) right);
+        }
+        throw new RuntimeError(operator,"Operand must be two numbers or two string");
+    }
+
+    static boolean greater(Object left,Object right,Token operator){
+        checkNumbers(left,right,operator);
+        return (double) left>(double) right;
+    }
+
+    static boolean greaterEqual(Object left,Object right,Token operator){
+        checkNumbers(left,right,operator);
+        return (double) left>=(double) right;
+    }
+
+    static boolean less(Object left,Object right,Token operator){
+        checkNumbers(left,right,operator);
+        return (double) left<(double) right;
+    }
+
+    static boolean lessEqual(Object left,Object right,Token operator){
+        checkNumbers(left,right,operator);
+        return (double) left<=(double) right;
+    }
+
+    static double negate(Object operand,Token operator){
+        if (operand instanceof Double){
+            return -(double) operand;
+        }
+        throw new RuntimeError(operator,"operand must be a number.");
+    }
+
+    // what Double.equals says, which is what the Interpreter goes by
+    static boolean equal(double left,double right){
+        return Double.doubleToLongBits(left)==Double.doubleToLongBits(right);
+    }
+
+    private static void checkNumbers(Object left,Object right,Token operator){
+        if (!(left instanceof Double && right instanceof Double)){
+            throw new RuntimeError(operator,"Operand must be number");
+        }
+    }
+}
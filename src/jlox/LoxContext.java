@@ -0,0 +1,373 @@
+package jlox;
+// One isolated Lox runtime: its own SymbolTable, globals, output and error
+// state. Nothing is shared between contexts except the on-disk AstCache and
+// the Jit's hot scripts in their Options, so any number of them can run at
+// once on different threads. A single
+// context runs one script at a time; globals persist from one run to the
+// next, as in the REPL.
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class LoxContext implements ErrorReporter {
+    // how scripts are run; one Options can be shared by many contexts
+    public static class Options {
+        boolean vm=false;
+        boolean optimize=false;
+        boolean profile=false;
+        boolean closures=false;
+        int jit=-1;
+        AstCache cache=null;
+        OutputSink.FlushPolicy flush=OutputSink.FlushPolicy.SIZE;
+        Diagnostics.Format diagnostics=Diagnostics.Format.TEXT;
+        // by AstCache key of the source, so runs in every context sharing
+        // these Options count towards the jit threshold
+        final Map<String,HotScript> hotScripts=new ConcurrentHashMap<>();
+
+        public Options vm(boolean vm){
+            this.vm=vm;
+            return this;
+        }
+
+        public Options optimize(boolean optimize){
+            this.optimize=optimize;
+            return this;
+        }
+
+        // tree-walking interpreter only
+        public Options profile(boolean profile){
+            this.profile=profile;
+            return this;
+        }
+
+        // run scripts as a tree of lambdas made by the ClosureCompiler
+        // instead of walking the tree
+        public Options closures(boolean closures){
+            this.closures=closures;
+            return this;
+        }
+
+        // Compile a script to JVM bytecode once it has run this many times
+        // in the contexts sharing these Options, so 0 compiles it straight away; -1, the default,
+        // never does. Tree-walking interpreter only; what the Jit can't
+        // compile stays interpreted.
+        public Options jit(int threshold){
+            this.jit=threshold;
+            return this;
+        }
+
+        public Options cache(Path directory){
+            this.cache=directory==null ? null : new AstCache(directory);
+            return this;
+        }
+
+        Options flush(OutputSink.FlushPolicy flush){
+            this.flush=flush;
+            return this;
+        }
+
+        // errors are written out together when the script ends
+        Options diagnostics(Diagnostics.Format diagnostics){
+            this.diagnostics=diagnostics;
+            return this;
+        }
+    }
+
+    private final Options options;
+    private final SymbolTable symbols=new SymbolTable();
+    private final OutputSink out;
+    private final PrintStream err;
+    private final Interpreter interpreter;
+    private final VM vm;
+    private final Diagnostics diagnostics=new Diagnostics();
+
+    // How often a script ran, and its compiled form once it has one.
+    // Shared by contexts on several threads, like PreparedScript.
+    private static class HotScript {
+        final AtomicInteger runs=new AtomicInteger();
+        volatile CompiledScript compiled;
+        // the table the compiled code's symbols come from
+        volatile SymbolTable symbols;
+        volatile int statementCount;
+        volatile boolean uncompilable=false;
+
+        // symbols is the table statements were parsed against
+        void compile(List<Stmt> statements,SymbolTable symbols,int threshold){
+            if (compiled!=null || uncompilable || runs.getAndIncrement()<threshold){
+                return;
+            }
+            synchronized (this){
+                if (compiled==null && !uncompilable){
+                    statementCount=statements.size();
+                    this.symbols=symbols;
+                    compiled=Jit.compile(statements);
+                    uncompilable=compiled==null;
+                }
+            }
+        }
+
+        // null if it isn't compiled yet
+        CompiledScript compiled(SymbolTable symbols){
+            CompiledScript script=compiled;
+            if (script==null || this.symbols==symbols){
+                return script;
+            }
+            return script.rebind(symbols);
+        }
+    }
+
+    public LoxContext(OutputStream out,PrintStream err){
+        this(out,err,new Options());
+    }
+
+    public LoxContext(OutputStream out,PrintStream err,Options options){
+        this.options=options;
+        this.out=new OutputSink(out,options.flush);
+        this.err=err;
+        interpreter=options.profile ? new ProfilingInterpreter(this.out,this) : new Interpreter(this.out,this);
+        vm=new VM(symbols,this.out,this);
+    }
+
+    // 0, or the exit code for the first kind of error the script hit
+    public synchronized int runFile(Path file)throws IOException{
+        ByteBuffer source=map(file);
+        if (source==null){
+            run(new Scanner(new InputStreamReader(Files.newInputStream(file),StandardCharsets.UTF_8),symbols,this));
+        }else {
+            run(source);
+        }
+        return finish();
+    }
+
+    public synchronized int runSource(String source){
+        run(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+        return finish();
+    }
+
+    // one REPL line; syntax errors don't stick to the next line
+    synchronized void runLine(String line){
+        run(new Scanner(new StringReader(line),symbols,this));
+        out.flush();
+        diagnostics.emit(err,options.diagnostics);
+        diagnostics.clearError();
+    }
+
+    public synchronized boolean hadError(){
+        return diagnostics.hadError();
+    }
+
+    public synchronized boolean hadRuntimeError(){
+        return diagnostics.hadRuntimeError();
+    }
+
+    private void run(ByteBuffer source){
+        if (options.jit>=0){
+            runJit(source);
+        }else if (options.cache!=null){
+            runCached(source);
+        }else {
+            run(new Scanner(new Utf8Reader(source),symbols,this));
+        }
+    }
+
+    int finish(){
+        out.flush();
+        diagnostics.emit(err,options.diagnostics);
+        report();
+        if(diagnostics.hadError()){
+            return 65;
+        }
+        if (diagnostics.hadRuntimeError()) {
+            return 70;
+        }
+        return 0;
+    }
+
+    private void runCached(ByteBuffer source){
+        List<Stmt> statements=load(AstCache.key(source),source);
+        if (statements!=null){
+            execute(statements);
+        }
+    }
+
+    // from the cache, or parsed and stored there; null if it doesn't parse
+    private List<Stmt> load(String key,ByteBuffer source){
+        List<Stmt> statements=options.cache.load(key,symbols);
+        if (statements==null){
+            statements=parse(new Scanner(new Utf8Reader(source),symbols,this));
+            if (diagnostics.hadError()){
+                return null;
+            }
+            try {
+                options.cache.store(key,statements);
+            }catch (IOException e){
+                err.println("[cache] could not store "+key+": "+e.getMessage());
+            }
+        }
+        return statements;
+    }
+
+    // a script that has been compiled skips the front end altogether
+    private void runJit(ByteBuffer source){
+        String key=AstCache.key(source);
+        HotScript hot=options.hotScripts.computeIfAbsent(key,k->new HotScript());
+        if (hot.compiled!=null){
+            interpret(null,hot);
+            return;
+        }
+        List<Stmt> statements;
+        if (options.cache!=null){
+            statements=load(key,source);
+        }else {
+            statements=parse(new Scanner(new Utf8Reader(source),symbols,this));
+        }
+        if (statements!=null && !diagnostics.hadError()){
+            execute(statements,hot);
+        }
+    }
+
+    private void report(){
+        if (interpreter instanceof ProfilingInterpreter){
+            ((ProfilingInterpreter) interpreter).report(err);
+        }
+    }
+
+    // scripts are UTF-8; the file is mapped and decoded by the Scanner as it
+    // goes. null if it is too big to map in one piece.
+    private static ByteBuffer map(Path path)throws IOException{
+        try (FileChannel channel=FileChannel.open(path,StandardOpenOption.READ)){
+            long size=channel.size();
+            if (size>Integer.MAX_VALUE){
+                return null;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+        }
+    }
+
+    private void run(Scanner scanner){
+        List<Stmt> statements=parse(scanner);
+        if (diagnostics.hadError()){
+            return;
+        }
+        execute(statements);
+    }
+
+    private List<Stmt> parse(Scanner scanner){
+        LoxEvents.ParseEvent parse=new LoxEvents.ParseEvent();
+        parse.begin();
+        Parser parser=new Parser(scanner,this);
+        List<Stmt> statements=parser.parse();
+        parse.end();
+        if (parse.shouldCommit()){
+            parse.tokenCount=scanner.tokenCount();
+            parse.sourceChars=scanner.charCount();
+            parse.statementCount=statements.size();
+            parse.commit();
+        }
+        return statements;
+    }
+
+    private void execute(List<Stmt> statements){
+        execute(statements,null);
+    }
+
+    // hot is only given for scripts the Jit may compile
+    private void execute(List<Stmt> statements,HotScript hot){
+        // the tree as written is checked, so code the Optimizer drops still
+        // reports its errors
+        resolve(statements);
+        if (diagnostics.hadError()){
+            return;
+        }
+        if (options.optimize){
+            Optimizer optimizer=new Optimizer();
+            statements=optimizer.optimize(statements);
+            err.println("[optimizer] eliminated "+optimizer.eliminated()+" nodes, hoisted "+optimizer.hoisted()+" loop invariants");
+            // slots change when declarations are dropped
+            resolve(statements);
+        }
+        if (hot!=null){
+            hot.compile(statements,symbols,options.jit);
+        }
+        interpret(statements,hot);
+    }
+
+    private void resolve(List<Stmt> statements){
+        LoxEvents.ResolveEvent resolve=new LoxEvents.ResolveEvent();
+        resolve.begin();
+        Resolver resolver=new Resolver(this);
+        resolver.resolve(statements);
+        resolve.end();
+        if (resolve.shouldCommit()){
+            resolve.localReferences=resolver.localReferences;
+            resolve.globalReferences=resolver.globalReferences;
+            resolve.maxScopeDepth=resolver.maxDepth;
+            resolve.averageScopeDepth=resolver.localReferences==0 ? 0 : (float) resolver.totalDepth/resolver.localReferences;
+            resolve.commit();
+        }
+    }
+
+    // runs the compiled form if hot has one; statements is null when the
+    // script only exists compiled
+    private void interpret(List<Stmt> statements,HotScript hot){
+        CompiledScript compiled=hot==null ? null : hot.compiled(symbols);
+        LoxEvents.InterpretEvent interpret=new LoxEvents.InterpretEvent();
+        interpret.begin();
+        if (compiled!=null){
+            try {
+                compiled.run(interpreter.globals,out);
+            }catch (RuntimeError error){
+                out.flush();
+                runtimeError(error);
+            }
+        }else if (options.vm){
+            Chunk chunk=new Compiler(this).compile(statements);
+            if (!diagnostics.hadError()){
+                vm.interpret(chunk);
+            }
+        }else if (options.closures){
+            try {
+                ClosureCompiler.compile(statements).run(interpreter.globals,out);
+            }catch (RuntimeError error){
+                out.flush();
+                runtimeError(error);
+            }
+        }else {
+            interpreter.interpret(statements);
+        }
+        interpret.end();
+        if (interpret.shouldCommit()){
+            interpret.statementCount=compiled!=null ? hot.statementCount : statements.size();
+            interpret.engine=compiled!=null ? "jit" : options.vm ? "vm" : options.closures ? "closures" : "tree-walker";
+            interpret.commit();
+        }
+    }
+
+    @Override
+    public void report(Diagnostic diagnostic){
+        if (diagnostic.kind==Diagnostic.Kind.RUNTIME){
+            LoxEvents.RuntimeErrorEvent event=new LoxEvents.RuntimeErrorEvent();
+            // not shouldCommit, which would count against the rate limit once
+            // more than commit itself
+            if (event.isEnabled()){
+                event.message=diagnostic.message;
+                event.line=diagnostic.line;
+                event.commit();
+            }
+        }
+        diagnostics.report(diagnostic);
+    }
+}
@@ -0,0 +1,172 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingControl;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.util.Set;
+
+// Java Flight Recorder events for the phases of jlox.run. When no recording
+// is active, creating and committing one of these is close to free.
+final class LoxEvents {
+    private LoxEvents(){
+    }
+
+    // Scanning happens inside parsing since the Parser pulls tokens on
+    // demand, so one event covers both.
+    @Name("jlox.Parse")
+    @Label("Scan and Parse")
+    @Category("jlox")
+    @StackTrace(false)
+    static final class ParseEvent extends Event {
+        @Label("Tokens")
+        long tokenCount;
+        @Label("Source Chars")
+        long sourceChars;
+        @Label("Statements")
+        int statementCount;
+    }
+
+    @Name("jlox.Resolve")
+    @Label("Resolve")
+    @Category("jlox")
+    @Description("Static resolution; the depths are how many enclosing environments each local lookup walks")
+    @StackTrace(false)
+    static final class ResolveEvent extends Event {
+        @Label("Local References")
+        int localReferences;
+        @Label("Global References")
+        int globalReferences;
+        @Label("Max Scope Depth")
+        int maxScopeDepth;
+        @Label("Average Scope Depth")
+        float averageScopeDepth;
+    }
+
+    @Name("jlox.Interpret")
+    @Label("Interpret")
+    @Category("jlox")
+    @StackTrace(false)
+    static final class InterpretEvent extends Event {
+        @Label("Statements")
+        int statementCount;
+        @Label("Engine")
+        String engine;
+    }
+
+    // Only top-level statements are timed, and only by the tree-walking
+    // Interpreter: the VM, closures and compiled scripts don't run statement
+    // by statement. Anything under the threshold is dropped.
+    @Name("jlox.SlowStatement")
+    @Label("Slow Statement")
+    @Category("jlox")
+    @Threshold("20 ms")
+    @StackTrace(false)
+    static final class SlowStatementEvent extends Event {
+        static final EventType TYPE=EventType.getEventType(SlowStatementEvent.class);
+
+        @Label("Line")
+        int line;
+    }
+
+    @Name("jlox.RuntimeError")
+    @Label("Runtime Error")
+    @Category("jlox")
+    @StackTrace(false)
+    static final class RuntimeErrorEvent extends Event {
+        @Label("Message")
+        String message;
+        @Label("Line")
+        int line;
+
+        // e.g. jlox.RuntimeError#rate=10/s
+        @Name("rate")
+        @Label("Rate")
+        @Description("Most errors recorded per second, the rest are dropped")
+        @SettingDefinition
+        boolean rate(RateControl control){
+            return control.admit();
+        }
+    }
+
+    // An events-per-second limit, "N/s" or "off". Shared by all threads, so
+    // a daemon running a script that keeps failing records at most N errors
+    // a second however many connections send it.
+    public static final class RateControl extends SettingControl {
+        private static final String DEFAULT="100/s";
+        private String value=DEFAULT;
+        // -1 when off
+        private volatile long limit=100;
+        private long second;
+        private long count;
+
+        public RateControl(){
+        }
+
+        synchronized boolean admit(){
+            if (limit<0){
+                return true;
+            }
+            long now=System.nanoTime()/1_000_000_000L;
+            if (now!=second){
+                second=now;
+                count=0;
+            }
+            return count++<limit;
+        }
+
+        // the highest limit of all the recordings
+        @Override
+        public String combine(Set<String> values){
+            long highest=-2;
+            String combined=DEFAULT;
+            for (String candidate:values){
+                long candidateLimit=parse(candidate);
+                if (candidateLimit==-1){
+                    return "off";
+                }
+                if (candidateLimit>highest){
+                    highest=candidateLimit;
+                    combined=candidate;
+                }
+            }
+            return combined;
+        }
+
+        @Override
+        public synchronized void setValue(String value){
+            long parsed=parse(value);
+            if (parsed!=-2){
+                this.value=value;
+                limit=parsed;
+            }
+        }
+
+        @Override
+        public synchronized String getValue(){
+            return value;
+        }
+
+        // -1 for off, -2 if it can't be read
+        private static long parse(String value){
+            if (value.equals("off")){
+                return -1;
+            }
+            if (value.endsWith("/s")){
+                try {
+                    return Math.max(0,Long.parseLong(value.substring(0,value.length()-2).trim()));
+                }catch (NumberFormatException e){
+                    return -2;
+                }
+            }
+            return -2;
+        }
+    }
+}
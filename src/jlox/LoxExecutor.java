@@ -0,0 +1,49 @@
+package jlox;
+// Runs many scripts at once, each on its own virtual thread and in its own
+// LoxContext. Scripts that wait on I/O give up their carrier thread, and
+// CPU-bound ones spread over the cores, all inside one JVM.
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class LoxExecutor implements AutoCloseable {
+    private final ExecutorService executor=Executors.newVirtualThreadPerTaskExecutor();
+    private final LoxContext.Options options;
+
+    public LoxExecutor(){
+        this(new LoxContext.Options());
+    }
+
+    public LoxExecutor(LoxContext.Options options){
+        this.options=options;
+    }
+
+    // the Future holds the exit code, as LoxContext.runFile returns it
+    public Future<Integer> submit(Path script,OutputStream out,PrintStream err){
+        return submit(()->new LoxContext(out,err,options).runFile(script));
+    }
+
+    public Future<Integer> submit(String source,OutputStream out,PrintStream err){
+        return submit(()->new LoxContext(out,err,options).runSource(source));
+    }
+
+    // for callers that keep their own contexts, e.g. to reuse globals
+    public Future<Integer> submit(LoxContext context,String source){
+        return submit(()->context.runSource(source));
+    }
+
+    private Future<Integer> submit(Callable<Integer> task){
+        return executor.submit(task);
+    }
+
+    // waits for the scripts already submitted
+    @Override
+    public void close(){
+        executor.close();
+    }
+}
@@ -0,0 +1,96 @@
+package jlox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Runtime value of a Lox string. Concatenation builds a rope node instead of
+// copying both sides, so growing a string piece by piece is linear overall;
+// the rope is flattened the first time its text is needed (printing,
+// equality, hashing) and the tree is dropped afterwards.
+// Flat text is kept in a java.lang.String, which already stores Latin-1
+// content one byte per char.
+final class LoxString {
+    // below this many chars copying is cheaper than another rope node
+    private static final int SHORT=64;
+
+    private String flat;
+    private LoxString left;
+    private LoxString right;
+    private final int length;
+
+    private LoxString(String flat){
+        this.flat=flat;
+        this.length=flat.length();
+    }
+
+    private LoxString(LoxString left,LoxString right){
+        this.left=left;
+        this.right=right;
+        this.length=left.length+right.length;
+    }
+
+    static LoxString of(String text){
+        return new LoxString(text);
+    }
+
+    static LoxString concat(LoxString left,LoxString right){
+        if (left.length==0){
+            return right;
+        }
+        if (right.length==0){
+            return left;
+        }
+        if (left.length+right.length<=SHORT && left.flat!=null && right.flat!=null){
+            return new LoxString(left.flat.concat(right.flat));
+        }
+        return new LoxString(left,right);
+    }
+
+    int length(){
+        return length;
+    }
+
+    @Override
+    public String toString(){
+        if (flat==null){
+            flatten();
+        }
+        return flat;
+    }
+
+    @Override
+    public boolean equals(Object other){
+        if (this==other){
+            return true;
+        }
+        if (!(other instanceof LoxString)){
+            return false;
+        }
+        LoxString that=(LoxString) other;
+        return length==that.length && toString().equals(that.toString());
+    }
+
+    @Override
+    public int hashCode(){
+        return toString().hashCode();
+    }
+
+    // iterative, since strings built in a loop make ropes as deep as the loop
+    private void flatten(){
+        StringBuilder builder=new StringBuilder(length);
+        Deque<LoxString> pending=new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()){
+            LoxString node=pending.pop();
+            if (node.flat!=null){
+                builder.append(node.flat);
+            }else {
+                pending.push(node.right);
+                pending.push(node.left);
+            }
+        }
+        flat=builder.toString();
+        left=null;
+        right=null;
+    }
+}
@@ -0,0 +1,59 @@
+package jlox;
+// Lox values packed into a long, the way Environment stores them. A number
+// is its own IEEE 754 bits, with every NaN collapsed to the canonical one.
+// Everything else is a quiet NaN that no stored number has: bits 50-62 set
+// and a tag in the low bits. Strings and other objects only get the
+// REFERENCE tag; the object itself goes in a side array next to the longs.
+
+final class NanBox {
+    private static final long TAGGED=0x7ffc000000000000L;
+    static final long UNDEFINED=TAGGED, NIL=TAGGED|1, FALSE=TAGGED|2, TRUE=TAGGED|3, REFERENCE=TAGGED|4;
+
+    private NanBox(){
+    }
+
+    static long number(double value){
+        // doubleToLongBits, not the raw variant, so a NaN from arithmetic
+        // can't carry a payload that looks like a tag
+        return Double.doubleToLongBits(value);
+    }
+
+    static boolean isNumber(long bits){
+        return (bits&TAGGED)!=TAGGED;
+    }
+
+    static double asNumber(long bits){
+        return Double.longBitsToDouble(bits);
+    }
+
+    // REFERENCE for anything that has to go in the side array
+    static long encode(Object value){
+        if (value==null){
+            return NIL;
+        }
+        if (value instanceof Double){
+            return number((double) value);
+        }
+        if (value instanceof Boolean){
+            return (boolean) value ? TRUE : FALSE;
+        }
+        return REFERENCE;
+    }
+
+    // reference is only read for the REFERENCE tag
+    static Object decode(long bits,Object reference){
+        if (isNumber(bits)){
+            return asNumber(bits);
+        }
+        if (bits==NIL){
+            return null;
+        }
+        if (bits==TRUE){
+            return Boolean.TRUE;
+        }
+        if (bits==FALSE){
+            return Boolean.FALSE;
+        }
+        return reference;
+    }
+}
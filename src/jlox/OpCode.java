@@ -0,0 +1,58 @@
+package jlox;
+
+// Instruction set of the bytecode VM. Operands follow the opcode in the
+// chunk; u16 operands are stored big-endian. Jump targets are absolute
+// offsets into the chunk's code.
+final class OpCode {
+    static final byte CONSTANT=0;      // u16 constant index
+    static final byte NIL=1;
+    static final byte TRUE=2;
+    static final byte FALSE=3;
+    static final byte POP=4;
+    static final byte POPN=5;          // u16 count
+    static final byte GET_LOCAL=6;     // u16 stack slot
+    static final byte SET_LOCAL=7;     // u16 stack slot
+    static final byte GET_GLOBAL=8;    // u32 symbol ID of the name
+    static final byte DEFINE_GLOBAL=9; // u32 symbol ID of the name
+    static final byte SET_GLOBAL=10;   // u32 symbol ID of the name
+    static final byte EQUAL=11;
+    static final byte NOT_EQUAL=12;
+    static final byte GREATER=13;
+    static final byte GREATER_EQUAL=14;
+    static final byte LESS=15;
+    static final byte LESS_EQUAL=16;
+    static final byte ADD=17;
+    static final byte SUBTRACT=18;
+    static final byte MULTIPLY=19;
+    static final byte DIVIDE=20;
+    static final byte NOT=21;
+    static final byte NEGATE=22;
+    static final byte PRINT=23;
+    static final byte RETURN=24;
+    static final byte CONSTANT_LONG=25; // u32 constant index
+    static final byte JUMP=26;          // u32 target
+    static final byte JUMP_IF_FALSE=27; // u32 target; leaves the condition on the stack
+    static final byte POP_JUMP_IF_FALSE=28; // u32 target; pops the condition
+    static final byte POP_JUMP_IF_TRUE=29;  // u32 target; pops the condition
+    static final byte STORE_LOCAL=30;   // u16 stack slot; SET_LOCAL then POP
+    static final byte STORE_GLOBAL=31;  // u32 symbol ID; SET_GLOBAL then POP
+    // Number-specialized forms. The *_CONSTANT ones take a number constant as
+    // the right operand instead of from the stack; the *_NUMBER ones are
+    // only emitted for operands the Compiler knows are numbers, and don't
+    // check them.
+    static final byte ADD_CONSTANT=32;           // u16 constant index
+    static final byte SUBTRACT_CONSTANT=33;      // u16 constant index
+    static final byte MULTIPLY_CONSTANT=34;      // u16 constant index
+    static final byte DIVIDE_CONSTANT=35;        // u16 constant index
+    static final byte GREATER_CONSTANT=36;       // u16 constant index
+    static final byte GREATER_EQUAL_CONSTANT=37; // u16 constant index
+    static final byte LESS_CONSTANT=38;          // u16 constant index
+    static final byte LESS_EQUAL_CONSTANT=39;    // u16 constant index
+    static final byte ADD_NUMBER=40;
+    static final byte SUBTRACT_NUMBER=41;
+    static final byte MULTIPLY_NUMBER=42;
+    static final byte DIVIDE_NUMBER=43;
+
+    private OpCode(){
+    }
+}
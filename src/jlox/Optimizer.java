@@ -0,0 +1,441 @@
+package jlox;
+// Optional tree rewriting pass over a tree the Resolver has already checked,
+// so code it drops still reports its compile errors. The result has to be
+// resolved again, since dropping declarations changes slots.
+//  - folds Unary/Binary nodes whose operands are literals
+//  - strips Grouping wrappers
+//  - propagates initializers of variables that are never reassigned
+//  - drops expression statements that have no effect
+//  - picks the branch of an if, or drops a while, whose condition is a literal
+//  - hoists loop-invariant expressions: an operator expression that reads
+//    only literals and variables the loop never assigns or declares becomes
+//    an Invariant node, computed the first time a run of the loop needs it
+//    and reused by the rest of that run
+// Anything that would raise a runtime error is left in place so the error
+// still happens at the same point; an invariant is only computed where the
+// original expression would have been, so that holds for hoisting too.
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class Optimizer implements Expr.Visitor<Expr>,Stmt.Visitor<Stmt> {
+    private static final Object NOT_CONSTANT=new Object();
+    private final Interpreter evaluator=new Interpreter();
+    private final List<Map<String,Stmt.Var>> scopes=new ArrayList<>();
+    private final Map<Stmt.Var,Object> constants=new HashMap<>();
+    private Set<Stmt.Var> mutated;
+    private Map<Stmt.While,Set<String>> assignedInLoop;
+    // of the innermost loop being optimized, null outside loops
+    private Set<String> varying;
+    private List<Expr.Invariant> invariants;
+    private int eliminated=0;
+    private int hoisted=0;
+
+    List<Stmt> optimize(List<Stmt> statements){
+        MutationScan scan=new MutationScan();
+        mutated=scan.scan(statements);
+        assignedInLoop=scan.assignedInLoop;
+        scopes.add(new HashMap<>());
+        List<Stmt> result=optimizeAll(statements);
+        scopes.clear();
+        return result;
+    }
+
+    int eliminated(){
+        return eliminated;
+    }
+
+    int hoisted(){
+        return hoisted;
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements){
+        List<Stmt> result=new ArrayList<>(statements.size());
+        for (Stmt statement:statements){
+            Stmt optimized=statement.accept(this);
+            if (optimized!=null){
+                result.add(optimized);
+            }
+        }
+        return result;
+    }
+
+    private Expr optimize(Expr expr){
+        return expr.accept(this);
+    }
+
+    // for the expressions directly under a statement; inside a loop their
+    // invariant parts get hoisted
+    private Expr optimizeRoot(Expr expr){
+        Expr optimized=optimize(expr);
+        return varying==null ? optimized : hoist(optimized);
+    }
+
+    // wraps the largest invariant operator expressions in Invariant nodes
+    private Expr hoist(Expr expr){
+        if (isInvariant(expr)){
+            if (expr instanceof Expr.Binary || expr instanceof Expr.Unary || expr instanceof Expr.Logical){
+                Expr.Invariant invariant=new Expr.Invariant(expr);
+                invariants.add(invariant);
+                hoisted++;
+                return invariant;
+            }
+            return expr;
+        }
+        if (expr instanceof Expr.Binary){
+            Expr.Binary binary=(Expr.Binary) expr;
+            return new Expr.Binary(hoist(binary.left),binary.operator,hoist(binary.right));
+        }
+        if (expr instanceof Expr.Logical){
+            Expr.Logical logical=(Expr.Logical) expr;
+            return new Expr.Logical(hoist(logical.left),logical.operator,hoist(logical.right));
+        }
+        if (expr instanceof Expr.Unary){
+            Expr.Unary unary=(Expr.Unary) expr;
+            return new Expr.Unary(unary.operator,hoist(unary.right));
+        }
+        if (expr instanceof Expr.Assign){
+            Expr.Assign assign=(Expr.Assign) expr;
+            return new Expr.Assign(assign.name,hoist(assign.value));
+        }
+        return expr;
+    }
+
+    // Names are compared rather than declarations: a name the loop assigns or
+    // declares anywhere is taken to vary, whichever variable it refers to.
+    private boolean isInvariant(Expr expr){
+        if (expr instanceof Expr.Literal){
+            return true;
+        }
+        if (expr instanceof Expr.Variable){
+            return !varying.contains(((Expr.Variable) expr).name.lexeme);
+        }
+        if (expr instanceof Expr.Binary){
+            return isInvariant(((Expr.Binary) expr).left) && isInvariant(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Logical){
+            return isInvariant(((Expr.Logical) expr).left) && isInvariant(((Expr.Logical) expr).right);
+        }
+        if (expr instanceof Expr.Unary){
+            return isInvariant(((Expr.Unary) expr).right);
+        }
+        // assignments, and invariants of an inner loop, which has its own runs
+        return false;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashMap<>());
+        List<Stmt> statements=optimizeAll(stmt.statements);
+        scopes.remove(scopes.size()-1);
+        if (statements.isEmpty()){
+            eliminated++;
+            return null;
+        }
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression=optimizeRoot(stmt.expression);
+        if (expression instanceof Expr.Literal
+                || (expression instanceof Expr.Variable && lookup(((Expr.Variable) expression).name)!=null)){
+            eliminated+=2;
+            return null;
+        }
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition=optimizeRoot(stmt.condition);
+        if (condition instanceof Expr.Literal){
+            eliminated+=2;
+            Stmt branch=Interpreter.isTruthy(((Expr.Literal) condition).value) ? stmt.thenBranch : stmt.elseBranch;
+            return branch==null ? null : branch.accept(this);
+        }
+        Stmt thenBranch=stmt.thenBranch.accept(this);
+        Stmt elseBranch=stmt.elseBranch==null ? null : stmt.elseBranch.accept(this);
+        return new Stmt.If(condition,thenBranch==null ? empty() : thenBranch,elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimizeRoot(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition=optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)){
+            eliminated+=2;
+            return null;
+        }
+        Set<String> outerVarying=varying;
+        List<Expr.Invariant> outerInvariants=invariants;
+        varying=assignedInLoop.get(stmt);
+        invariants=new ArrayList<>();
+        condition=hoist(condition);
+        Stmt body=stmt.body.accept(this);
+        Stmt.While loop=new Stmt.While(condition,body==null ? empty() : body);
+        if (!invariants.isEmpty()){
+            loop.invariants=invariants;
+        }
+        varying=outerVarying;
+        invariants=outerInvariants;
+        return loop;
+    }
+
+    // stands in for a branch or loop body that optimized away
+    private static Stmt empty(){
+        return new Stmt.Block(new ArrayList<>());
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        // declared before the initializer is visited, as in the Resolver
+        scopes.get(scopes.size()-1).put(stmt.name.lexeme,stmt);
+        constants.put(stmt,NOT_CONSTANT);
+        Expr initializer=stmt.initializer==null ? null : optimizeRoot(stmt.initializer);
+        if (!mutated.contains(stmt)){
+            if (initializer==null){
+                constants.put(stmt,null);
+            }else if (initializer instanceof Expr.Literal){
+                constants.put(stmt,((Expr.Literal) initializer).value);
+            }
+        }
+        return new Stmt.Var(stmt.name,initializer);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name,optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left=optimize(expr.left);
+        Expr right=optimize(expr.right);
+        Expr.Binary binary=new Expr.Binary(left,expr.operator,right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal){
+            try {
+                Object value=evaluator.evaluate(binary);
+                eliminated+=2;
+                return new Expr.Literal(value);
+            }catch (RuntimeError error){
+                // keep it so the error is reported at runtime
+            }
+        }
+        return binary;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        eliminated++;
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left=optimize(expr.left);
+        Expr right=optimize(expr.right);
+        if (left instanceof Expr.Literal){
+            // the left operand decides whether the right one is the result
+            boolean truthy=Interpreter.isTruthy(((Expr.Literal) left).value);
+            eliminated++;
+            return truthy==(expr.operator.type==Tokentype.OR) ? left : right;
+        }
+        return new Expr.Logical(left,expr.operator,right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right=optimize(expr.right);
+        Expr.Unary unary=new Expr.Unary(expr.operator,right);
+        if (right instanceof Expr.Literal){
+            try {
+                Object value=evaluator.evaluate(unary);
+                eliminated++;
+                return new Expr.Literal(value);
+            }catch (RuntimeError error){
+                // keep it so the error is reported at runtime
+            }
+        }
+        return unary;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        Stmt.Var declaration=lookup(expr.name);
+        if (declaration!=null){
+            Object value=constants.get(declaration);
+            if (value!=NOT_CONSTANT){
+                return new Expr.Literal(value);
+            }
+        }
+        return expr;
+    }
+
+    private Stmt.Var lookup(Token name){
+        for (int i=scopes.size()-1;i>=0;i--){
+            Stmt.Var declaration=scopes.get(i).get(name.lexeme);
+            if (declaration!=null){
+                return declaration;
+            }
+        }
+        return null;
+    }
+
+    // Finds the declarations that are assigned to, or redeclared, anywhere,
+    // and the names each loop assigns or declares.
+    private static class MutationScan implements Expr.Visitor<Void>,Stmt.Visitor<Void> {
+        private final List<Map<String,Stmt.Var>> scopes=new ArrayList<>();
+        private final Set<Stmt.Var> mutated=new HashSet<>();
+        private final Map<Stmt.While,Set<String>> assignedInLoop=new HashMap<>();
+        // the loops around the node being scanned
+        private final List<Set<String>> loops=new ArrayList<>();
+
+        Set<Stmt.Var> scan(List<Stmt> statements){
+            scopes.add(new HashMap<>());
+            scanAll(statements);
+            return mutated;
+        }
+
+        private void scanAll(List<Stmt> statements){
+            for (Stmt statement:statements){
+                statement.accept(this);
+            }
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scopes.add(new HashMap<>());
+            scanAll(stmt.statements);
+            scopes.remove(scopes.size()-1);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch!=null){
+                stmt.elseBranch.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            Set<String> assigned=new HashSet<>();
+            assignedInLoop.put(stmt,assigned);
+            loops.add(assigned);
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            loops.remove(loops.size()-1);
+            return null;
+        }
+
+        private void assigned(Token name){
+            for (Set<String> loop:loops){
+                loop.add(name.lexeme);
+            }
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            assigned(stmt.name);
+            Stmt.Var previous=scopes.get(scopes.size()-1).put(stmt.name.lexeme,stmt);
+            if (previous!=null){
+                mutated.add(previous);
+                mutated.add(stmt);
+            }
+            if (stmt.initializer!=null){
+                stmt.initializer.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+            assigned(expr.name);
+            for (int i=scopes.size()-1;i>=0;i--){
+                Stmt.Var declaration=scopes.get(i).get(expr.name.lexeme);
+                if (declaration!=null){
+                    mutated.add(declaration);
+                    break;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// Where print statements go. Output is formatted into a char buffer and
+// written out according to the flush policy, instead of one synchronized
+// println per print.
+public class OutputSink {
+    enum FlushPolicy {
+        // only when flush() is called, normally when the script ends
+        EXIT,
+        // whenever the buffer fills up
+        SIZE,
+        // after every print, for the REPL
+        NEWLINE
+    }
+
+    private static final int CAPACITY=8192;
+    private final OutputStream out;
+    private Writer writer;
+    private final FlushPolicy policy;
+    // the buffer and the writer are made on first use, many runs print nothing
+    private char[] buffer=new char[0];
+    private int count=0;
+
+    OutputSink(OutputStream out,FlushPolicy policy){
+        this.out=out;
+        this.policy=policy;
+    }
+
+    OutputSink(Writer writer,FlushPolicy policy){
+        this.out=null;
+        this.writer=writer;
+        this.policy=policy;
+    }
+
+    void print(Object value){
+        if (value==null){
+            append("nil");
+        }else if (value instanceof Double){
+            appendNumber((double) value);
+        }else {
+            append(value.toString());
+        }
+        ensureCapacity(1);
+        buffer[count++]='\n';
+        if (policy==FlushPolicy.NEWLINE || (policy==FlushPolicy.SIZE && count>=CAPACITY)){
+            flush();
+        }
+    }
+
+    void flush(){
+        if (count==0){
+            return;
+        }
+        if (writer==null){
+            writer=new OutputStreamWriter(out,charset(out));
+        }
+        try {
+            writer.write(buffer,0,count);
+            writer.flush();
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        count=0;
+    }
+
+    // A PrintStream such as System.out has its own encoding (stdout.encoding),
+    // which can differ from the default charset; println would have used it.
+    private static Charset charset(OutputStream out){
+        return out instanceof PrintStream ? ((PrintStream) out).charset() : Charset.defaultCharset();
+    }
+
+    // Same text as Interpreter.stringify. Integral values below 1e7 (the
+    // point where Double.toString switches to exponent notation) are written
+    // digit by digit; everything else goes through Double.toString.
+    private void appendNumber(double value){
+        long integral=(long) value;
+        if (integral==value && Math.abs(value)<1e7 && Double.doubleToRawLongBits(value)!=Double.doubleToRawLongBits(-0.0)){
+            appendLong(integral);
+            return;
+        }
+        String text=Double.toString(value);
+        if (text.endsWith(".0")){
+            ensureCapacity(text.length());
+            text.getChars(0,text.length()-2,buffer,count);
+            count+=text.length()-2;
+            return;
+        }
+        append(text);
+    }
+
+    private void appendLong(long value){
+        ensureCapacity(20);
+        if (value<0){
+            buffer[count++]='-';
+            value=-value;
+        }
+        int end=count;
+        do {
+            buffer[end++]=(char) ('0'+value%10);
+            value/=10;
+        }while (value!=0);
+        for (int i=count,j=end-1;i<j;i++,j--){
+            char c=buffer[i];
+            buffer[i]=buffer[j];
+            buffer[j]=c;
+        }
+        count=end;
+    }
+
+    private void append(String text){
+        ensureCapacity(text.length());
+        text.getChars(0,text.length(),buffer,count);
+        count+=text.length();
+    }
+
+    private void ensureCapacity(int extra){
+        if (count+extra<=buffer.length){
+            return;
+        }
+        if (policy!=FlushPolicy.EXIT && count>0){
+            flush();
+            if (extra<=buffer.length){
+                return;
+            }
+        }
+        buffer=Arrays.copyOf(buffer,Math.max(Math.max(buffer.length*2,CAPACITY),count+extra));
+    }
+}
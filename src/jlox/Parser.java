@@ -1,5 +1,6 @@
 package jlox;
-// Recursive-descent parser
+// Recursive-descent parser for statements, precedence climbing (Pratt) for
+// binary operators
 
 //program → declaration* EOF ;
 
@@ -7,14 +8,31 @@ import java.util.ArrayList;
 import java.util.List;
 import static  jlox.Tokentype.*;
 public class Parser {
+    // only unwinds to the next statement, so it skips the stack trace
     private static class ParseError extends RuntimeException{
-
+        ParseError(){
+            super(null,null,false,false);
+        }
     }
-    private final List<Token> tokens;
-    private int current=0;
+    // one token of lookahead is all the grammar needs, so tokens are pulled
+    // from the source as they are consumed instead of being held in a list
+    private final TokenSource source;
+    private final ErrorReporter reporter;
+    private Token current;
+    private Token previous;
 
     Parser(List<Token> tokens){
-        this.tokens=tokens;
+        this(tokens.iterator()::next);
+    }
+
+    Parser(TokenSource source){
+        this(source,ErrorReporter.STDERR);
+    }
+
+    Parser(TokenSource source,ErrorReporter reporter){
+        this.source=source;
+        this.reporter=reporter;
+        this.current=source.nextToken();
     }
     List<Stmt> parse(){
         List<Stmt> statements=new ArrayList<>();
@@ -49,17 +67,89 @@ public class Parser {
         return new Stmt.Var(name,initializer);
     }
 
-    //statement      → exprStmt | printStmt ;
+    //statement      → exprStmt | forStmt | ifStmt | printStmt | whileStmt | block ;
     private Stmt statement(){
+        if (match(FOR)){
+            return forStatement();
+        }
+        if (match(IF)){
+            return ifStatement();
+        }
         if (match(PRINT)){
             return printStatement();
         }
+        if (match(WHILE)){
+            return whileStatement();
+        }
         if (match(LEFT_BRACE)){
             return new Stmt.Block(block());
         }
         return expressionStatement();
     }
 
+    //forStmt → "for" "(" ( varDecl | exprStmt | ";" ) expression? ";" expression? ")" statement ;
+    // desugared into a while loop inside a block that holds the initializer
+    private Stmt forStatement(){
+        consume(LEFT_PAREN,"Expect '(' after 'for'");
+        Stmt initializer;
+        if (match(SEMICOLON)){
+            initializer=null;
+        }else if (match(VAR)){
+            initializer=varDeclaration();
+        }else {
+            initializer=expressionStatement();
+        }
+        Expr condition=null;
+        if (!check(SEMICOLON)){
+            condition=expression();
+        }
+        consume(SEMICOLON,"Expect ';' after loop condition");
+        Expr increment=null;
+        if (!check(RIGHT_PAREN)){
+            increment=expression();
+        }
+        consume(RIGHT_PAREN,"Expect ')' after for clauses");
+        Stmt body=statement();
+        if (increment!=null){
+            List<Stmt> statements=new ArrayList<>(2);
+            statements.add(body);
+            statements.add(new Stmt.Expression(increment));
+            body=new Stmt.Block(statements);
+        }
+        if (condition==null){
+            condition=new Expr.Literal(true);
+        }
+        body=new Stmt.While(condition,body);
+        if (initializer!=null){
+            List<Stmt> statements=new ArrayList<>(2);
+            statements.add(initializer);
+            statements.add(body);
+            body=new Stmt.Block(statements);
+        }
+        return body;
+    }
+
+    //ifStmt → "if" "(" expression ")" statement ( "else" statement )? ;
+    private Stmt ifStatement(){
+        consume(LEFT_PAREN,"Expect '(' after 'if'");
+        Expr condition=expression();
+        consume(RIGHT_PAREN,"Expect ')' after if condition");
+        Stmt thenBranch=statement();
+        Stmt elseBranch=null;
+        if (match(ELSE)){
+            elseBranch=statement();
+        }
+        return new Stmt.If(condition,thenBranch,elseBranch);
+    }
+
+    //whileStmt → "while" "(" expression ")" statement ;
+    private Stmt whileStatement(){
+        consume(LEFT_PAREN,"Expect '(' after 'while'");
+        Expr condition=expression();
+        consume(RIGHT_PAREN,"Expect ')' after condition");
+        return new Stmt.While(condition,statement());
+    }
+
     private Stmt printStatement(){
         Expr value=expression();
         consume(SEMICOLON,"Expected ';' after value");
@@ -77,7 +167,7 @@ public class Parser {
     }
 
     private Expr assignment(){
-        Expr expr=equality();
+        Expr expr=binary(OR);
         if (match(EQUAL)){
            Token equal=previous();
            Expr value=assignment();
@@ -91,24 +181,54 @@ public class Parser {
 
         return expr;
     }
+    // Binary operators are parsed by precedence climbing over this table
+    // instead of one method per level, so an operand costs the same few calls
+    // however many levels sit above it.
+    //logic_or       → logic_and ( "or" logic_and )* ;
+    //logic_and      → equality ( "and" equality )* ;
     //equality       → comparison ( ( "!=" | "==" ) comparison )* ;
-    private Expr equality(){
-        Expr expr=comparison();
-        while (match(BANG_EQUAL,EQUAL_EQUAL)){
-            Token operator=previous();
-            Expr right=comparison();
-            expr=new Expr.Binary(expr,operator,right);
+    //comparison     → term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
+    //term           → factor ( ( "-" | "+" ) factor )* ;
+    //factor         → unary ( ( "/" | "*" ) unary )* ;
+    private static final int NONE=0, OR=1, AND=2, EQUALITY=3, COMPARISON=4, TERM=5, FACTOR=6;
+    // binding power of each token as an infix operator, NONE if it isn't one
+    private static final int[] INFIX=new int[Tokentype.values().length];
+    static {
+        INFIX[Tokentype.OR.ordinal()]=OR;
+        INFIX[Tokentype.AND.ordinal()]=AND;
+        INFIX[BANG_EQUAL.ordinal()]=EQUALITY;
+        INFIX[EQUAL_EQUAL.ordinal()]=EQUALITY;
+        INFIX[GREATER.ordinal()]=COMPARISON;
+        INFIX[GREATER_EQUAL.ordinal()]=COMPARISON;
+        INFIX[LESS.ordinal()]=COMPARISON;
+        INFIX[LESS_EQUAL.ordinal()]=COMPARISON;
+        INFIX[MINUS.ordinal()]=TERM;
+        INFIX[PLUS.ordinal()]=TERM;
+        INFIX[SLASH.ordinal()]=FACTOR;
+        INFIX[STAR.ordinal()]=FACTOR;
+    }
+
+    // every operator binding at least as tightly as minimum; all of them are
+    // left-associative, so the right operand only takes tighter ones
+    private Expr binary(int minimum){
+        Expr expr=unary();
+        for (int power;(power=INFIX[peek().type.ordinal()])>=minimum;){
+            Token operator=advance();
+            Expr right=binary(power+1);
+            if (power<=AND){
+                // short-circuiting, so it gets a node of its own
+                expr=new Expr.Logical(expr,operator,right);
+            }else {
+                expr=new Expr.Binary(expr,operator,right);
+            }
         }
         return expr;
     }
 
-
-    private boolean match(Tokentype... types){
-        for (Tokentype type:types){
-            if(check(type)){
-                advance();
-                return true;
-            }
+    private boolean match(Tokentype type){
+        if(check(type)){
+            advance();
+            return true;
         }
         return false;
     }
@@ -126,7 +246,8 @@ public class Parser {
     }
     private Token advance(){
         if(!isAtEnd()){
-            current++;
+            previous=current;
+            current=source.nextToken();
         }
         return previous();
     }
@@ -136,14 +257,14 @@ public class Parser {
     }
 
     private Token peek(){
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous(){
-        return tokens.get(current-1);
+        return previous;
     }
     private ParseError error(Token token,String message){
-        jlox.error(token,message);
+        reporter.error(token,message);
         return new ParseError();
     }
     private void synchronize(){
@@ -166,43 +287,11 @@ public class Parser {
             advance();
         }
     }
-    //comparison     → term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
-    private Expr comparison(){
-        Expr expr=term();
-        while (match(GREATER,GREATER_EQUAL,LESS,LESS_EQUAL)){
-            Token operator=previous();
-            Expr right=term();
-            expr=new Expr.Binary(expr,operator,right);
-        }
-        return expr;
-    }
-
-    //term  → factor ( ( "-" | "+" ) factor )* ;
-    private Expr term(){
-        Expr expr=factor();
-        while (match(MINUS,PLUS)){
-            Token operator=previous();
-            Expr right=factor();
-            expr=new Expr.Binary(expr,operator,right);
-        }
-        return expr;
-    }
-
-   //factor → unary ( ( "/" | "*" ) unary )* ;
-    private Expr factor(){
-        Expr expr=unary();
-        while (match(SLASH,STAR)){
-            Token operator=previous();
-            Expr right=unary();
-            expr=new Expr.Binary(expr,operator,right);
-        }
-        return expr;
-    }
-
     //unary → ( "!" | "-" ) unary | primary ;
     private Expr unary(){
-        if (match(BANG,MINUS)){
-            Token operator=previous();
+        Tokentype type=peek().type;
+        if (type==BANG || type==MINUS){
+            Token operator=advance();
             Expr right=unary();
             return new Expr.Unary(operator,right);
         }
@@ -211,26 +300,27 @@ public class Parser {
 
     //primary  → NUMBER | STRING | "true" | "false" | "nil"  | "(" expression ")" ;
     private Expr primary(){
-        if (match(FALSE)){
-            return new Expr.Literal(FALSE);
-        }
-        if (match(TRUE)){
-            return new Expr.Literal(TRUE);
-        }
-        if (match(NIL)){
-            return new Expr.Literal(NIL);
-        }
-
-        if (match(NUMBER,STRING)){
-            return new Expr.Literal(previous().literal);
-        }
-        if (match(IDENTIFIER)){
-            return new Expr.Variable(previous());
-        }
-        if (match(LEFT_PAREN)){
-            Expr expr=expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+        switch (peek().type){
+            case FALSE:
+                advance();
+                return new Expr.Literal(false);
+            case TRUE:
+                advance();
+                return new Expr.Literal(true);
+            case NIL:
+                advance();
+                return new Expr.Literal(null);
+            case NUMBER:
+            case STRING:
+                return new Expr.Literal(advance().literal);
+            case IDENTIFIER:
+                return new Expr.Variable(advance());
+            case LEFT_PAREN: {
+                advance();
+                Expr expr=expression();
+                consume(RIGHT_PAREN, "Expect ')' after expression.");
+                return new Expr.Grouping(expr);
+            }
         }
         throw error(peek(),"Expected expression");
     }
@@ -0,0 +1,125 @@
+package jlox;
+// A script scanned, parsed and resolved once, then run any number of times,
+// from any number of threads. Each run gets fresh globals seeded from the
+// caller's bindings and hands back the globals as they were at the end, so
+// the front end costs nothing on the hot path.
+//
+// The tree is only read while running, apart from the Binary nodes'
+// specialization, which every state handles correctly; concurrent runs
+// racing on it at worst deoptimize a node early.
+//
+// Prepared with a jit threshold, the script is compiled to JVM bytecode by
+// the Jit once it has run that many times, and later runs use that instead.
+
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class PreparedScript {
+    private final List<Stmt> statements;
+    // read-only once preparing is done
+    private final SymbolTable symbols;
+    private final int jitThreshold;
+    private final AtomicInteger runs=new AtomicInteger();
+    private volatile CompiledScript compiled;
+    private volatile boolean uncompilable=false;
+
+    private PreparedScript(List<Stmt> statements,SymbolTable symbols,int jitThreshold){
+        this.statements=statements;
+        this.symbols=symbols;
+        this.jitThreshold=jitThreshold;
+    }
+
+    // never compiled to bytecode
+    public static PreparedScript prepare(String source){
+        return prepare(source,-1);
+    }
+
+    // IllegalArgumentException with the error messages if the source doesn't
+    // compile. jitThreshold is the number of runs after which it is compiled
+    // to bytecode, -1 for never.
+    public static PreparedScript prepare(String source,int jitThreshold){
+        Diagnostics diagnostics=new Diagnostics();
+        SymbolTable symbols=new SymbolTable();
+        List<Stmt> statements=new Parser(new Scanner(source,symbols,diagnostics),diagnostics).parse();
+        if (!diagnostics.hadError()){
+            new Resolver(diagnostics).resolve(statements);
+        }
+        if (diagnostics.hadError()){
+            throw new IllegalArgumentException(diagnostics.format(Diagnostics.Format.TEXT).trim());
+        }
+        return new PreparedScript(List.copyOf(statements),symbols,jitThreshold);
+    }
+
+    // prints go to System.out
+    public Map<String,Object> run(Map<String,?> bindings){
+        return run(bindings,System.out);
+    }
+
+    // Bindings and results are Double, String, Boolean or null. A runtime
+    // error is thrown as a RuntimeError after the output so far is flushed.
+    public Map<String,Object> run(Map<String,?> bindings,OutputStream out){
+        OutputSink sink=new OutputSink(out,OutputSink.FlushPolicy.SIZE);
+        Interpreter interpreter=new Interpreter(sink);
+        Map<String,Object> globals=new HashMap<>();
+        for (Map.Entry<String,?> binding:bindings.entrySet()){
+            Object value=toLox(binding.getValue());
+            int symbol=symbols.lookup(binding.getKey());
+            if (symbol<0){
+                // the script never mentions it, so it can only come back unchanged
+                globals.put(binding.getKey(),value);
+            }else {
+                interpreter.globals.define(symbol,value);
+            }
+        }
+        CompiledScript script=compiled();
+        try {
+            if (script!=null){
+                script.run(interpreter.globals,sink);
+            }else {
+                for (Stmt statement:statements){
+                    interpreter.execute(statement);
+                }
+            }
+        }finally {
+            sink.flush();
+        }
+        interpreter.globals.globals(symbols,globals);
+        globals.replaceAll((name,value)->fromLox(value));
+        return globals;
+    }
+
+    // null until the threshold is reached, or if the Jit can't compile it
+    private CompiledScript compiled(){
+        CompiledScript script=compiled;
+        if (script!=null || jitThreshold<0 || uncompilable || runs.getAndIncrement()<jitThreshold){
+            return script;
+        }
+        synchronized (this){
+            if (compiled==null && !uncompilable){
+                compiled=Jit.compile(statements);
+                uncompilable=compiled==null;
+            }
+            return compiled;
+        }
+    }
+
+    private static Object toLox(Object value){
+        if (value==null || value instanceof Double || value instanceof Boolean){
+            return value;
+        }
+        if (value instanceof Number){
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof CharSequence){
+            return LoxString.of(value.toString());
+        }
+        throw new IllegalArgumentException("Lox has no value of type "+value.getClass().getName());
+    }
+
+    private static Object fromLox(Object value){
+        return value instanceof LoxString ? value.toString() : value;
+    }
+}
@@ -0,0 +1,152 @@
+package jlox;
+// Interpreter used by --profile. Every statement and expression goes through
+// execute/evaluate/evaluateNumber, which this subclass wraps to count
+// executions and time them, so the plain Interpreter carries no profiling
+// code at all.
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+class ProfilingInterpreter extends Interpreter {
+    private static class NodeStats{
+        final int line;
+        long count=0;
+        long selfNanos=0;
+        long totalNanos=0;
+        NodeStats(int line){
+            this.line=line;
+        }
+    }
+
+    private static class Frame{
+        final Object node;
+        final NodeStats stats;
+        final long start;
+        long childNanos=0;
+        Frame(Object node,NodeStats stats,long start){
+            this.node=node;
+            this.stats=stats;
+            this.start=start;
+        }
+    }
+
+    private static class LineStats{
+        long statements=0;
+        long expressions=0;
+        long selfNanos=0;
+        long totalNanos=0;
+    }
+
+    private static final int REPORT_LINES=30;
+    private final Map<Object,NodeStats> nodes=new IdentityHashMap<>();
+    private final List<Frame> frames=new ArrayList<>();
+
+    ProfilingInterpreter(OutputSink out,ErrorReporter reporter){
+        super(out,reporter);
+    }
+
+    @Override
+    void execute(Stmt stmt){
+        Frame frame=enter(stmt,line(stmt));
+        try {
+            super.execute(stmt);
+        }finally {
+            exit(frame);
+        }
+    }
+
+    @Override
+    Object evaluate(Expr expr){
+        if (isCurrent(expr)){
+            return super.evaluate(expr);
+        }
+        Frame frame=enter(expr,line(expr));
+        try {
+            return super.evaluate(expr);
+        }finally {
+            exit(frame);
+        }
+    }
+
+    @Override
+    double evaluateNumber(Expr expr){
+        if (isCurrent(expr)){
+            return super.evaluateNumber(expr);
+        }
+        Frame frame=enter(expr,line(expr));
+        try {
+            return super.evaluateNumber(expr);
+        }finally {
+            exit(frame);
+        }
+    }
+
+    void report(PrintStream err){
+        Map<Integer,LineStats> lines=new TreeMap<>();
+        for (Map.Entry<Object,NodeStats> entry:nodes.entrySet()){
+            NodeStats stats=entry.getValue();
+            LineStats line=lines.computeIfAbsent(stats.line,k->new LineStats());
+            if (entry.getKey() instanceof Stmt){
+                line.statements+=stats.count;
+            }else {
+                line.expressions+=stats.count;
+            }
+            line.selfNanos+=stats.selfNanos;
+            line.totalNanos+=stats.totalNanos;
+        }
+        List<Map.Entry<Integer,LineStats>> ranked=new ArrayList<>(lines.entrySet());
+        ranked.sort((a,b)->Long.compare(b.getValue().selfNanos,a.getValue().selfNanos));
+        err.println("[profile] lines ranked by self time");
+        err.printf("%8s %12s %12s %12s %12s%n","line","statements","expressions","self ms","total ms");
+        for (Map.Entry<Integer,LineStats> entry:ranked.subList(0,Math.min(REPORT_LINES,ranked.size()))){
+            LineStats line=entry.getValue();
+            err.printf("%8s %12d %12d %12.3f %12.3f%n",
+                    entry.getKey()<0 ? "?" : entry.getKey().toString(),
+                    line.statements,line.expressions,line.selfNanos/1e6,line.totalNanos/1e6);
+        }
+        if (ranked.size()>REPORT_LINES){
+            err.println("[profile] "+(ranked.size()-REPORT_LINES)+" more lines not shown");
+        }
+    }
+
+    private boolean isCurrent(Object node){
+        return !frames.isEmpty() && frames.get(frames.size()-1).node==node;
+    }
+
+    private Frame enter(Object node,int line){
+        NodeStats stats=nodes.get(node);
+        if (stats==null){
+            // literals and the like take the line of whatever evaluates them
+            if (line<0 && !frames.isEmpty()){
+                line=frames.get(frames.size()-1).stats.line;
+            }
+            stats=new NodeStats(line);
+            nodes.put(node,stats);
+        }
+        Frame frame=new Frame(node,stats,System.nanoTime());
+        frames.add(frame);
+        return frame;
+    }
+
+    private void exit(Frame frame){
+        long total=System.nanoTime()-frame.start;
+        frames.remove(frames.size()-1);
+        NodeStats stats=frame.stats;
+        stats.count++;
+        stats.selfNanos+=total-frame.childNanos;
+        if (frames.isEmpty()){
+            stats.totalNanos+=total;
+            return;
+        }
+        Frame parent=frames.get(frames.size()-1);
+        parent.childNanos+=total;
+        // a line's total only counts its outermost node so nested ones aren't added twice
+        if (parent.stats.line!=stats.line){
+            stats.totalNanos+=total;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package jlox;
+// Static resolution pass, runs between Parser and Interpreter.
+// Every local variable reference is annotated with the number of scopes
+// between it and its declaration (depth) and its index in that scope (slot).
+// References left at depth -1 are globals and are looked up by name.
+// A block that declares nothing gets no scope (slots stays 0) and runs in
+// the enclosing environment, so it doesn't count towards depths either.
+// Every annotation is overwritten, so a tree can be resolved again after
+// the Optimizer has rewritten it.
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Resolver implements Expr.Visitor<Void>,Stmt.Visitor<Void> {
+    // Names in declaration order, so a name's index is its slot. Most
+    // scopes hold a few names and are searched linearly; big ones get a map.
+    private static class Scope{
+        private static final int LINEAR=8;
+        private String[] names=new String[4];
+        private boolean[] defined=new boolean[4];
+        private Map<String,Integer> index;
+        private int size=0;
+
+        // -1 if the name isn't declared here
+        int find(String name){
+            if (index!=null){
+                Integer slot=index.get(name);
+                return slot==null ? -1 : slot;
+            }
+            for (int i=0;i<size;i++){
+                if (names[i].equals(name)){
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int declare(String name){
+            if (size==names.length){
+                names=Arrays.copyOf(names,size*2);
+                defined=Arrays.copyOf(defined,size*2);
+            }
+            names[size]=name;
+            if (index==null && size==LINEAR){
+                index=new HashMap<>();
+                for (int i=0;i<size;i++){
+                    index.put(names[i],i);
+                }
+            }
+            if (index!=null){
+                index.put(name,size);
+            }
+            return size++;
+        }
+    }
+    private final List<Scope> scopes=new ArrayList<>();
+    private final ErrorReporter reporter;
+    int localReferences=0;
+    int globalReferences=0;
+    int maxDepth=0;
+    long totalDepth=0;
+
+    Resolver(){
+        this(ErrorReporter.STDERR);
+    }
+
+    Resolver(ErrorReporter reporter){
+        this.reporter=reporter;
+    }
+
+    void resolve(List<Stmt> statements){
+        for (Stmt statement:statements){
+            resolve(statement);
+        }
+    }
+
+    private void resolve(Stmt stmt){
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr){
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!declares(stmt.statements)){
+            stmt.slots=0;
+            resolve(stmt.statements);
+            return null;
+        }
+        beginScope();
+        resolve(stmt.statements);
+        stmt.slots=endScope().size;
+        return null;
+    }
+
+    private static boolean declares(List<Stmt> statements){
+        for (Stmt statement:statements){
+            if (statement instanceof Stmt.Var){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch!=null){
+            resolve(stmt.elseBranch);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        int slot=declare(stmt.name);
+        if (stmt.initializer!=null){
+            resolve(stmt.initializer);
+        }
+        if (slot>=0){
+            scopes.get(scopes.size()-1).defined[slot]=true;
+        }
+        stmt.slot=slot;
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        expr.depth=-1;
+        for (int i=scopes.size()-1;i>=0;i--){
+            int slot=scopes.get(i).find(expr.name.lexeme);
+            if (slot>=0){
+                expr.depth=scopes.size()-1-i;
+                expr.slot=slot;
+                break;
+            }
+        }
+        count(expr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        for (int i=scopes.size()-1;i>=0;i--){
+            Scope scope=scopes.get(i);
+            int slot=scope.find(expr.name.lexeme);
+            if (slot>=0){
+                if (!scope.defined[slot]){
+                    reporter.error(expr.name,"Can't read local variable in its own initializer.");
+                }
+                expr.depth=scopes.size()-1-i;
+                expr.slot=slot;
+                count(expr.depth);
+                return null;
+            }
+        }
+        expr.depth=-1;
+        count(-1);
+        return null;
+    }
+
+    private void count(int depth){
+        if (depth<0){
+            globalReferences++;
+            return;
+        }
+        localReferences++;
+        totalDepth+=depth;
+        maxDepth=Math.max(maxDepth,depth);
+    }
+
+    private void beginScope(){
+        scopes.add(new Scope());
+    }
+
+    private Scope endScope(){
+        return scopes.remove(scopes.size()-1);
+    }
+
+    // the new slot, -1 for globals
+    private int declare(Token name){
+        if (scopes.isEmpty()){
+            return -1;
+        }
+        Scope scope=scopes.get(scopes.size()-1);
+        if (scope.find(name.lexeme)>=0){
+            reporter.error(name,"Already a variable with this name in this scope.");
+        }
+        return scope.declare(name.lexeme);
+    }
+}
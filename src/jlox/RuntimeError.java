@@ -2,9 +2,24 @@ package jlox;
 
 public class RuntimeError extends RuntimeException {
     final Token token;
+    final int line;
 
+    // stackless: the Lox line is what matters, and scripts that fail a lot
+    // shouldn't pay for capturing the interpreter's Java stack
     RuntimeError(Token token,String message){
-        super(message);
+        super(message,null,false,false);
         this.token=token;
+        this.line=token.line;
+    }
+
+    public int line(){
+        return line;
+    }
+
+    // used by the VM, which only keeps line numbers
+    RuntimeError(int line,String message){
+        super(message,null,false,false);
+        this.token=null;
+        this.line=line;
     }
 }
@@ -1,52 +1,144 @@
 package jlox;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import  static jlox.Tokentype.*;
 
-public class Scanner {
-    private final String source;
-    private  final List<Token> tokens=new ArrayList<>();
+// Pulls characters from a Reader through a small sliding window and hands
+// out one token at a time, so only the token being scanned is kept in memory.
+public class Scanner implements TokenSource {
+    private static final int WINDOW=8192;
+    private final Reader reader;
+    private final SymbolTable symbols;
+    private final ErrorReporter reporter;
+    private char[] buffer=new char[WINDOW];
+    private int limit=0;
+    private boolean exhausted=false;
+    private Token next;
     private int start=0;
     private int current=0;
     private int line=1;
-    private static final Map<String, Tokentype> keywords;
+    // offset in the whole source of the first character on this line
+    private long lineStart=0;
+    private int startColumn;
+    private long tokenCount=0;
+    private long charCount=0;
+    // exact powers of ten for parseNumber
+    private static final double[] POWERS={
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    // tokens whose text is always the same share one lexeme String
+    private static final String[] lexemes=new String[Tokentype.values().length];
     static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
-   Scanner(String source){
-       this.source=source;
+        String[] fixed = {
+                "(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*",
+                "!", "!=", "=", "==", ">", ">=", "<", "<=",
+        };
+        for (int i = 0; i < fixed.length; i++) {
+            lexemes[LEFT_PAREN.ordinal() + i] = fixed[i];
+        }
+        for (Tokentype type : new Tokentype[]{AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
+                PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE}) {
+            lexemes[type.ordinal()] = type.name().toLowerCase();
+        }
+    }
+   Scanner(CharSequence source){
+       this(source,new SymbolTable());
+   }
+
+   Scanner(CharSequence source,SymbolTable symbols){
+       this(new StringReader(source.toString()),symbols);
+   }
+
+   Scanner(CharSequence source,SymbolTable symbols,ErrorReporter reporter){
+       this(new StringReader(source.toString()),symbols,reporter);
+   }
+
+   Scanner(Reader reader,SymbolTable symbols){
+       this(reader,symbols,ErrorReporter.STDERR);
+   }
+
+   Scanner(Reader reader,SymbolTable symbols,ErrorReporter reporter){
+       this.reader=reader;
+       this.symbols=symbols;
+       this.reporter=reporter;
    }
 
     List<Token> scanTokens(){
-        while (!isAtEnd()){
+        List<Token> tokens=new ArrayList<>();
+        Token token;
+        do {
+            token=nextToken();
+            tokens.add(token);
+        }while (token.type!=EOF);
+        return tokens;
+    }
+
+    @Override
+    public Token nextToken(){
+        next=null;
+        while (next==null){
+            if (isAtEnd()){
+                return new Token(EOF,"",null,line,column(current),-1);
+            }
             start=current;
+            startColumn=column(start);
             scanToken();
         }
-        tokens.add(new Token(EOF,"",null,line));
-        return tokens;
+        tokenCount++;
+        return next;
+    }
+
+    // tokens handed out so far, not counting EOF
+    long tokenCount(){
+        return tokenCount;
+    }
+
+    // characters read from the source so far
+    long charCount(){
+        return charCount;
     }
 
     private boolean isAtEnd(){
-       return current>=source.length();
+       return !available(0);
+    }
+
+    // makes sure buffer[current+ahead] is loaded, sliding the window past
+    // everything before the start of the current token
+    private boolean available(int ahead){
+       while (current+ahead>=limit){
+           if (exhausted){
+               return false;
+           }
+           if (start>0){
+               System.arraycopy(buffer,start,buffer,0,limit-start);
+               limit-=start;
+               current-=start;
+               start=0;
+           }
+           if (limit==buffer.length){
+               buffer=Arrays.copyOf(buffer,buffer.length*2);
+           }
+           try {
+               int read=reader.read(buffer,limit,buffer.length-limit);
+               if (read<0){
+                   exhausted=true;
+                   reader.close();
+               }else {
+                   limit+=read;
+                   charCount+=read;
+               }
+           }catch (IOException e){
+               throw new UncheckedIOException(e);
+           }
+       }
+       return true;
     }
 
     private void scanToken(){
@@ -77,6 +169,7 @@ public class Scanner {
            case '/':
                if (match('/')) {
                    // A comment goes until the end of the line.
+                   start=current;
                    while (peek() != '\n' && !isAtEnd()) {
                        advance();
                    }
@@ -90,7 +183,7 @@ public class Scanner {
                // Ignore whitespace.
                break;
            case '\n':
-               line++;
+               newLine(current);
                break;
            case '"': string(); break;
            default:
@@ -99,30 +192,78 @@ public class Scanner {
                } else if (isAlpha(c)) {
                    identifier();
                } else {
-                   jlox.error(line, "Unexpected character.");
+                   reporter.error(line,startColumn, "Unexpected character.");
                }
                break;
        }
     }
 
     private char advance(){
-        return source.charAt(current++);
+        available(0);
+        return buffer[current++];
     }
 
     private void addToken(Tokentype type){
-       addToken(type,null);
+       String text=lexemes[type.ordinal()];
+       if (text==null){
+           addToken(type,null);
+           return;
+       }
+       next=new Token(type,text,null,line,startColumn,-1);
     }
 
     private void addToken(Tokentype type,Object literal){
-       String text=source.substring(start,current);
-       tokens.add(new Token(type,text,literal,line));
+       String text=new String(buffer,start,current-start);
+       next=new Token(type,text,literal,line,startColumn,-1);
+    }
+
+    // Double.parseDouble for the digits-and-optional-fraction the scanner
+    // accepts, without making a String. When the digits fit in a long below
+    // 2^53 and there are at most 22 of them after the point, both operands
+    // are exact doubles and one division rounds correctly; anything else
+    // goes through parseDouble.
+    static double parseNumber(char[] chars,int start,int length){
+       long digits=0;
+       int point=-1;
+       for (int i=start;i<start+length;i++){
+           char c=chars[i];
+           if (c=='.'){
+               point=i;
+               continue;
+           }
+           if (digits>=(1L<<53)/10){
+               return Double.parseDouble(new String(chars,start,length));
+           }
+           digits=digits*10+(c-'0');
+       }
+       int fraction=point<0 ? 0 : start+length-point-1;
+       if (fraction>=POWERS.length){
+           return Double.parseDouble(new String(chars,start,length));
+       }
+       return digits/POWERS[fraction];
+    }
+
+    // position counts from the start of the window, which slides; the
+    // offset in the whole source doesn't
+    private long offset(int position){
+       return charCount-limit+position;
+    }
+
+    private int column(int position){
+       return (int) (offset(position)-lineStart)+1;
+    }
+
+    // next is the position just past the '\n'
+    private void newLine(int next){
+       line++;
+       lineStart=offset(next);
     }
 
     private boolean match(char expected){
        if (isAtEnd()){
            return false;
        }
-       if (source.charAt(current)!=expected){
+       if (buffer[current]!=expected){
            return false;
        }
        current++;
@@ -133,24 +274,25 @@ public class Scanner {
        if (isAtEnd()){
            return '\0';
        }
-       return source.charAt(current);
+       return buffer[current];
     }
 
     private void string(){
        while (peek()!='"' && !isAtEnd()){
            if (peek()=='\n'){
-               line++;
+               newLine(current+1);
            }
            advance();
        }
        if (isAtEnd()){
-           jlox.error(line,"Unterminated string");
+           reporter.error(line,startColumn,"Unterminated string");
+           return;
        }
        //The Closing "
         advance();
 
-       String value=source.substring(start+1,current-1);
-       addToken(STRING,value);
+       String value=new String(buffer,start+1,current-start-2);
+       addToken(STRING,LoxString.of(value));
     }
     private boolean isDigit(char c){
        return c>='0' && c<='9';
@@ -169,14 +311,14 @@ public class Scanner {
             }
         }
 
-        addToken(NUMBER,Double.parseDouble(source.substring(start,current)));
+        addToken(NUMBER,parseNumber(buffer,start,current-start));
     }
 
     private char peekNext(){
-       if (current+1>=source.length()){
+       if (!available(1)){
            return '\0';
        }
-       return source.charAt(current+1);
+       return buffer[current+1];
     }
 
     private boolean isAlpha(char c){
@@ -187,12 +329,60 @@ public class Scanner {
        while (isAlphaNumeric(peek())){
            advance();
        }
-       String text=source.substring(start,current);
-       Tokentype type=keywords.get(text);
-       if (type==null){
-           type=IDENTIFIER;
+       Tokentype type=keyword();
+       if (type!=IDENTIFIER){
+           addToken(type);
+           return;
+       }
+       int symbol=symbols.intern(buffer,start,current-start);
+       next=new Token(IDENTIFIER,symbols.name(symbol),null,line,startColumn,symbol);
+    }
+
+    // recognizes keywords straight from the buffer, without building a String
+    private Tokentype keyword(){
+       switch (buffer[start]){
+           case 'a': return checkKeyword(1,"and",AND);
+           case 'c': return checkKeyword(1,"class",CLASS);
+           case 'e': return checkKeyword(1,"else",ELSE);
+           case 'f':
+               if (current-start>1){
+                   switch (buffer[start+1]){
+                       case 'a': return checkKeyword(2,"false",FALSE);
+                       case 'o': return checkKeyword(2,"for",FOR);
+                       case 'u': return checkKeyword(2,"fun",FUN);
+                   }
+               }
+               break;
+           case 'i': return checkKeyword(1,"if",IF);
+           case 'n': return checkKeyword(1,"nil",NIL);
+           case 'o': return checkKeyword(1,"or",OR);
+           case 'p': return checkKeyword(1,"print",PRINT);
+           case 'r': return checkKeyword(1,"return",RETURN);
+           case 's': return checkKeyword(1,"super",SUPER);
+           case 't':
+               if (current-start>1){
+                   switch (buffer[start+1]){
+                       case 'h': return checkKeyword(2,"this",THIS);
+                       case 'r': return checkKeyword(2,"true",TRUE);
+                   }
+               }
+               break;
+           case 'v': return checkKeyword(1,"var",VAR);
+           case 'w': return checkKeyword(1,"while",WHILE);
+       }
+       return IDENTIFIER;
+    }
+
+    private Tokentype checkKeyword(int from,String keyword,Tokentype type){
+       if (current-start!=keyword.length()){
+           return IDENTIFIER;
+       }
+       for (int i=from;i<keyword.length();i++){
+           if (buffer[start+i]!=keyword.charAt(i)){
+               return IDENTIFIER;
+           }
        }
-       addToken(type);
+       return type;
     }
 
     private boolean isAlphaNumeric(char c){
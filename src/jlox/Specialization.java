@@ -0,0 +1,12 @@
+package jlox;
+
+// Operand types an Expr.Binary node has specialized itself for.
+// A node starts UNINITIALIZED, picks NUMBER or STRING from the operands it
+// sees on its first evaluation and falls back to GENERIC for good once a
+// type guard fails.
+enum Specialization {
+    UNINITIALIZED,
+    NUMBER,
+    STRING,
+    GENERIC
+}
@@ -3,11 +3,15 @@ package jlox;
 import java.util.List;
 
 abstract class Stmt {
+  static final int SHAPE = -163994955;
+
   interface Visitor<R> {
  R visitBlockStmt(Block stmt);
  R visitExpressionStmt(Expression stmt);
+ R visitIfStmt(If stmt);
  R visitPrintStmt(Print stmt);
  R visitVarStmt(Var stmt);
+ R visitWhileStmt(While stmt);
 }
  static class Block extends Stmt{
     Block(List<Stmt> statements) {
@@ -20,6 +24,7 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+    int slots;
   }
  static class Expression extends Stmt{
     Expression(Expr expression) {
@@ -33,6 +38,22 @@ abstract class Stmt {
 
     final Expr expression;
   }
+ static class If extends Stmt{
+    If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIfStmt(this);
+    }
+
+    final Expr condition;
+    final Stmt thenBranch;
+    final Stmt elseBranch;
+  }
  static class Print extends Stmt{
     Print(Expr expression) {
       this.expression = expression;
@@ -46,9 +67,9 @@ abstract class Stmt {
     final Expr expression;
   }
  static class Var extends Stmt{
-    Var(Token name,Expr initializer) {
-      this.name= name;
-      this.initializer=initializer;
+    Var(Token name, Expr initializer) {
+      this.name = name;
+      this.initializer = initializer;
     }
 
     @Override
@@ -58,6 +79,22 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    int slot = -1;
+  }
+ static class While extends Stmt{
+    While(Expr condition, Stmt body) {
+      this.condition = condition;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWhileStmt(this);
+    }
+
+    final Expr condition;
+    final Stmt body;
+    List<Expr.Invariant> invariants;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
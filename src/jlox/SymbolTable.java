@@ -0,0 +1,108 @@
+package jlox;
+
+import java.util.Arrays;
+
+// Interns identifier names and numbers them densely from 0, so the same
+// name always maps to the same String and int ID. One table is shared by
+// the Scanner and the Interpreter/VM that run its output; it is not thread
+// safe.
+final class SymbolTable {
+    private String[] names=new String[64];
+    private int[] hashes=new int[64];
+    // open addressing, holds ID+1 so 0 means empty
+    private int[] table=new int[128];
+    private int count=0;
+
+    int intern(char[] chars,int offset,int length){
+        int hash=0;
+        for (int i=0;i<length;i++){
+            hash=31*hash+chars[offset+i];
+        }
+        int mask=table.length-1;
+        int index=spread(hash)&mask;
+        for (int entry;(entry=table[index])!=0;index=(index+1)&mask){
+            if (hashes[entry-1]==hash && matches(names[entry-1],chars,offset,length)){
+                return entry-1;
+            }
+        }
+        return add(new String(chars,offset,length),hash,index);
+    }
+
+    int intern(String name){
+        int hash=name.hashCode();
+        int mask=table.length-1;
+        int index=spread(hash)&mask;
+        for (int entry;(entry=table[index])!=0;index=(index+1)&mask){
+            if (hashes[entry-1]==hash && names[entry-1].equals(name)){
+                return entry-1;
+            }
+        }
+        return add(name,hash,index);
+    }
+
+    // -1 if the name was never interned; unlike intern, only reads the table
+    int lookup(String name){
+        int hash=name.hashCode();
+        int mask=table.length-1;
+        for (int index=spread(hash)&mask,entry;(entry=table[index])!=0;index=(index+1)&mask){
+            if (hashes[entry-1]==hash && names[entry-1].equals(name)){
+                return entry-1;
+            }
+        }
+        return -1;
+    }
+
+    String name(int symbol){
+        return names[symbol];
+    }
+
+    int size(){
+        return count;
+    }
+
+    private int add(String name,int hash,int index){
+        if (count==names.length){
+            names=Arrays.copyOf(names,count*2);
+            hashes=Arrays.copyOf(hashes,count*2);
+        }
+        names[count]=name;
+        hashes[count]=hash;
+        table[index]=count+1;
+        count++;
+        if (count*2>table.length){
+            rehash();
+        }
+        return count-1;
+    }
+
+    private void rehash(){
+        table=new int[table.length*2];
+        int mask=table.length-1;
+        for (int symbol=0;symbol<count;symbol++){
+            int index=spread(hashes[symbol])&mask;
+            while (table[index]!=0){
+                index=(index+1)&mask;
+            }
+            table[index]=symbol+1;
+        }
+    }
+
+    // String hashes of names like v1, v2, v3 are consecutive, which linear
+    // probing handles badly, so scramble them first
+    private static int spread(int hash){
+        hash*=0x9E3779B9;
+        return hash^(hash>>>16);
+    }
+
+    private static boolean matches(String name,char[] chars,int offset,int length){
+        if (name.length()!=length){
+            return false;
+        }
+        for (int i=0;i<length;i++){
+            if (name.charAt(i)!=chars[offset+i]){
+                return false;
+            }
+        }
+        return true;
+    }
+}
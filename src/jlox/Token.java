@@ -4,11 +4,23 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // 1-based, 0 when not known
+    final int column;
+    // SymbolTable ID for identifiers, -1 for everything else
+    final int symbol;
     Token(Tokentype type,String lexeme,Object literal,int line){
+            this(type,lexeme,literal,line,0,-1);
+    }
+    Token(Tokentype type,String lexeme,Object literal,int line,int symbol){
+            this(type,lexeme,literal,line,0,symbol);
+    }
+    Token(Tokentype type,String lexeme,Object literal,int line,int column,int symbol){
             this.type=type;
             this.lexeme=lexeme;
             this.literal=literal;
             this.line=line;
+            this.column=column;
+            this.symbol=symbol;
     }
     public String toString(){
         return type+" "+lexeme+" "+literal;
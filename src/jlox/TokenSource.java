@@ -0,0 +1,7 @@
+package jlox;
+
+// Where the Parser pulls its tokens from. Keeps returning an EOF token once
+// the input is exhausted.
+interface TokenSource {
+    Token nextToken();
+}
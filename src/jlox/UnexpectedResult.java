@@ -0,0 +1,14 @@
+package jlox;
+
+// Thrown by the Interpreter's unboxed double paths when an operand turns out
+// not to be a number. Carries the value that was actually produced so the
+// caller can deoptimize without evaluating anything twice. Stackless, since
+// it is control flow and not an error.
+class UnexpectedResult extends RuntimeException {
+    final Object result;
+
+    UnexpectedResult(Object result){
+        super(null,null,false,false);
+        this.result=result;
+    }
+}
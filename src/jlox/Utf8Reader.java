@@ -0,0 +1,102 @@
+package jlox;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+// Decodes UTF-8 straight out of a ByteBuffer (usually a memory-mapped file)
+// into the Scanner's char window, so a script is never copied into a byte[]
+// or a String as a whole. ASCII bytes are widened without further checks;
+// malformed sequences become U+FFFD.
+class Utf8Reader extends Reader {
+    private static final char REPLACEMENT='\uFFFD';
+    private final ByteBuffer bytes;
+    private int position;
+    private final int limit;
+    // second half of a surrogate pair that didn't fit into the last read
+    private char pending=0;
+
+    Utf8Reader(ByteBuffer bytes){
+        this.bytes=bytes;
+        this.position=bytes.position();
+        this.limit=bytes.limit();
+    }
+
+    @Override
+    public int read(char[] chars,int offset,int length){
+        if (length==0){
+            return 0;
+        }
+        int n=0;
+        if (pending!=0){
+            chars[offset+n++]=pending;
+            pending=0;
+        }
+        while (n<length && position<limit){
+            int b=bytes.get(position);
+            if (b>=0){
+                chars[offset+n++]=(char) b;
+                position++;
+                continue;
+            }
+            int codePoint=decode();
+            if (codePoint<0x10000){
+                chars[offset+n++]=(char) codePoint;
+            }else {
+                chars[offset+n++]=Character.highSurrogate(codePoint);
+                if (n<length){
+                    chars[offset+n++]=Character.lowSurrogate(codePoint);
+                }else {
+                    pending=Character.lowSurrogate(codePoint);
+                }
+            }
+        }
+        return n==0 ? -1 : n;
+    }
+
+    // decodes one multi-byte sequence starting at position and moves past it
+    private int decode(){
+        int lead=bytes.get(position)&0xff;
+        int count;
+        int min;
+        int codePoint;
+        if (lead>=0xC2 && lead<=0xDF){
+            count=1;
+            min=0x80;
+            codePoint=lead&0x1F;
+        }else if (lead>=0xE0 && lead<=0xEF){
+            count=2;
+            min=0x800;
+            codePoint=lead&0x0F;
+        }else if (lead>=0xF0 && lead<=0xF4){
+            count=3;
+            min=0x10000;
+            codePoint=lead&0x07;
+        }else {
+            position++;
+            return REPLACEMENT;
+        }
+        if (position+count>=limit){
+            position++;
+            return REPLACEMENT;
+        }
+        for (int i=1;i<=count;i++){
+            int next=bytes.get(position+i)&0xff;
+            if ((next&0xC0)!=0x80){
+                position++;
+                return REPLACEMENT;
+            }
+            codePoint=(codePoint<<6)|(next&0x3F);
+        }
+        if (codePoint<min || codePoint>0x10FFFF
+                || (codePoint>=Character.MIN_SURROGATE && codePoint<=Character.MAX_SURROGATE)){
+            position++;
+            return REPLACEMENT;
+        }
+        position+=count+1;
+        return codePoint;
+    }
+
+    @Override
+    public void close(){
+    }
+}
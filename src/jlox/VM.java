@@ -0,0 +1,372 @@
+package jlox;
+
+import java.util.Arrays;
+
+// Stack-based virtual machine executing Chunks produced by the Compiler.
+// Values are NanBox-encoded longs, as in Environment, so arithmetic on the
+// stack never boxes a number.
+public class VM {
+    private final SymbolTable symbols;
+    private final OutputSink out;
+    private final ErrorReporter reporter;
+    // indexed by symbol ID
+    private long[] globals=new long[0];
+    private Object[] globalReferences=new Object[0];
+
+    VM(SymbolTable symbols,OutputSink out,ErrorReporter reporter){
+        this.symbols=symbols;
+        this.out=out;
+        this.reporter=reporter;
+    }
+
+    void interpret(Chunk chunk){
+        try {
+            run(chunk);
+        }catch (RuntimeError error){
+            out.flush();
+            reporter.runtimeError(error);
+        }
+    }
+
+    private void run(Chunk chunk){
+        final byte[] code=chunk.code;
+        final Object[] constants=chunk.constants;
+        final long[] constantBits=new long[chunk.constantCount];
+        for (int i=0;i<constantBits.length;i++){
+            constantBits[i]=NanBox.encode(constants[i]);
+        }
+        // NanBox-encoded, with references alongside; a reference entry is
+        // only read where the value says REFERENCE
+        final long[] stack=new long[chunk.maxStack];
+        final Object[] references=new Object[chunk.maxStack];
+        int sp=0;
+        int ip=0;
+        for (;;){
+            byte instruction=code[ip++];
+            switch (instruction){
+                case OpCode.CONSTANT: {
+                    int index=readShort(code,ip);
+                    long value=constantBits[index];
+                    if (value==NanBox.REFERENCE){
+                        references[sp]=constants[index];
+                    }
+                    stack[sp++]=value;
+                    ip+=2;
+                    break;
+                }
+                case OpCode.CONSTANT_LONG: {
+                    int index=readInt(code,ip);
+                    long value=constantBits[index];
+                    if (value==NanBox.REFERENCE){
+                        references[sp]=constants[index];
+                    }
+                    stack[sp++]=value;
+                    ip+=4;
+                    break;
+                }
+                case OpCode.NIL: stack[sp++]=NanBox.NIL; break;
+                case OpCode.TRUE: stack[sp++]=NanBox.TRUE; break;
+                case OpCode.FALSE: stack[sp++]=NanBox.FALSE; break;
+                case OpCode.POP: sp--; break;
+                case OpCode.POPN:
+                    sp-=readShort(code,ip);
+                    ip+=2;
+                    break;
+                case OpCode.GET_LOCAL: {
+                    int slot=readShort(code,ip);
+                    long value=stack[slot];
+                    if (value==NanBox.REFERENCE){
+                        references[sp]=references[slot];
+                    }
+                    stack[sp++]=value;
+                    ip+=2;
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot=readShort(code,ip);
+                    long value=stack[sp-1];
+                    if (value==NanBox.REFERENCE){
+                        references[slot]=references[sp-1];
+                    }
+                    stack[slot]=value;
+                    ip+=2;
+                    break;
+                }
+                case OpCode.STORE_LOCAL: {
+                    int slot=readShort(code,ip);
+                    long value=stack[--sp];
+                    if (value==NanBox.REFERENCE){
+                        references[slot]=references[sp];
+                    }
+                    stack[slot]=value;
+                    ip+=2;
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    int symbol=readInt(code,ip);
+                    long value=symbol<globals.length ? globals[symbol] : NanBox.UNDEFINED;
+                    if (value==NanBox.UNDEFINED){
+                        throw undefined(chunk,ip,symbol);
+                    }
+                    if (value==NanBox.REFERENCE){
+                        references[sp]=globalReferences[symbol];
+                    }
+                    stack[sp++]=value;
+                    ip+=4;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int symbol=readInt(code,ip);
+                    if (symbol>=globals.length){
+                        growGlobals(symbol);
+                    }
+                    long value=stack[--sp];
+                    globals[symbol]=value;
+                    globalReferences[symbol]=value==NanBox.REFERENCE ? references[sp] : null;
+                    ip+=4;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int symbol=readInt(code,ip);
+                    if (symbol>=globals.length || globals[symbol]==NanBox.UNDEFINED){
+                        throw undefined(chunk,ip,symbol);
+                    }
+                    long value=stack[sp-1];
+                    globals[symbol]=value;
+                    globalReferences[symbol]=value==NanBox.REFERENCE ? references[sp-1] : null;
+                    ip+=4;
+                    break;
+                }
+                case OpCode.STORE_GLOBAL: {
+                    int symbol=readInt(code,ip);
+                    if (symbol>=globals.length || globals[symbol]==NanBox.UNDEFINED){
+                        throw undefined(chunk,ip,symbol);
+                    }
+                    long value=stack[--sp];
+                    globals[symbol]=value;
+                    globalReferences[symbol]=value==NanBox.REFERENCE ? references[sp] : null;
+                    ip+=4;
+                    break;
+                }
+                case OpCode.EQUAL:
+                    sp--;
+                    stack[sp-1]=bool(isEqual(stack,references,sp-1,sp));
+                    break;
+                case OpCode.NOT_EQUAL:
+                    sp--;
+                    stack[sp-1]=bool(!isEqual(stack,references,sp-1,sp));
+                    break;
+                case OpCode.GREATER: {
+                    long b=stack[--sp];
+                    long a=stack[sp-1];
+                    checkNumbers(chunk,ip,a,b);
+                    stack[sp-1]=bool(NanBox.asNumber(a)>NanBox.asNumber(b));
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    long b=stack[--sp];
+                    long a=stack[sp-1];
+                    checkNumbers(chunk,ip,a,b);
+                    stack[sp-1]=bool(NanBox.asNumber(a)>=NanBox.asNumber(b));
+                    break;
+                }
+                case OpCode.LESS: {
+                    long b=stack[--sp];
+                    long a=stack[sp-1];
+                    checkNumbers(chunk,ip,a,b);
+                    stack[sp-1]=bool(NanBox.asNumber(a)<NanBox.asNumber(b));
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    long b=stack[--sp];
+                    long a=stack[sp-1];
+                    checkNumbers(chunk,ip,a,b);
+                    stack[sp-1]=bool(NanBox.asNumber(a)<=NanBox.asNumber(b));
+                    break;
+                }
+                case OpCode.ADD: {
+                    long b=stack[--sp];
+                    long a=stack[sp-1];
+                    if (NanBox.isNumber(a) && NanBox.isNumber(b)){
+                        stack[sp-1]=NanBox.number(NanBox.asNumber(a)+NanBox.asNumber(b));
+                    }else if (a==NanBox.REFERENCE && b==NanBox.REFERENCE
+                            && references[sp-1] instanceof LoxString && references[sp] instanceof LoxString){
+                        references[sp-1]=LoxString.concat((LoxString) references[sp-1],(LoxString) references[sp]);
+                    }else {
+                        throw new RuntimeError(chunk.lines[ip-1],"Operand must be two numbers or two string");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    long b=stack[--sp];
+                    long a=stack[sp-1];
+                    checkNumbers(chunk,ip,a,b);
+                    stack[sp-1]=NanBox.number(NanBox.asNumber(a)-NanBox.asNumber(b));
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    long b=stack[--sp];
+                    long a=stack[sp-1];
+                    checkNumbers(chunk,ip,a,b);
+                    stack[sp-1]=NanBox.number(NanBox.asNumber(a)*NanBox.asNumber(b));
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    long b=stack[--sp];
+                    long a=stack[sp-1];
+                    checkNumbers(chunk,ip,a,b);
+                    stack[sp-1]=NanBox.number(NanBox.asNumber(a)/NanBox.asNumber(b));
+                    break;
+                }
+                case OpCode.ADD_CONSTANT: {
+                    long a=stack[sp-1];
+                    if (!NanBox.isNumber(a)){
+                        throw new RuntimeError(chunk.lines[ip-1],"Operand must be two numbers or two string");
+                    }
+                    stack[sp-1]=NanBox.number(NanBox.asNumber(a)+NanBox.asNumber(constantBits[readShort(code,ip)]));
+                    ip+=2;
+                    break;
+                }
+                case OpCode.SUBTRACT_CONSTANT: {
+                    double a=leftNumber(chunk,ip,stack[sp-1]);
+                    stack[sp-1]=NanBox.number(a-NanBox.asNumber(constantBits[readShort(code,ip)]));
+                    ip+=2;
+                    break;
+                }
+                case OpCode.MULTIPLY_CONSTANT: {
+                    double a=leftNumber(chunk,ip,stack[sp-1]);
+                    stack[sp-1]=NanBox.number(a*NanBox.asNumber(constantBits[readShort(code,ip)]));
+                    ip+=2;
+                    break;
+                }
+                case OpCode.DIVIDE_CONSTANT: {
+                    double a=leftNumber(chunk,ip,stack[sp-1]);
+                    stack[sp-1]=NanBox.number(a/NanBox.asNumber(constantBits[readShort(code,ip)]));
+                    ip+=2;
+                    break;
+                }
+                case OpCode.GREATER_CONSTANT: {
+                    double a=leftNumber(chunk,ip,stack[sp-1]);
+                    stack[sp-1]=bool(a>NanBox.asNumber(constantBits[readShort(code,ip)]));
+                    ip+=2;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL_CONSTANT: {
+                    double a=leftNumber(chunk,ip,stack[sp-1]);
+                    stack[sp-1]=bool(a>=NanBox.asNumber(constantBits[readShort(code,ip)]));
+                    ip+=2;
+                    break;
+                }
+                case OpCode.LESS_CONSTANT: {
+                    double a=leftNumber(chunk,ip,stack[sp-1]);
+                    stack[sp-1]=bool(a<NanBox.asNumber(constantBits[readShort(code,ip)]));
+                    ip+=2;
+                    break;
+                }
+                case OpCode.LESS_EQUAL_CONSTANT: {
+                    double a=leftNumber(chunk,ip,stack[sp-1]);
+                    stack[sp-1]=bool(a<=NanBox.asNumber(constantBits[readShort(code,ip)]));
+                    ip+=2;
+                    break;
+                }
+                case OpCode.ADD_NUMBER:
+                    sp--;
+                    stack[sp-1]=NanBox.number(NanBox.asNumber(stack[sp-1])+NanBox.asNumber(stack[sp]));
+                    break;
+                case OpCode.SUBTRACT_NUMBER:
+                    sp--;
+                    stack[sp-1]=NanBox.number(NanBox.asNumber(stack[sp-1])-NanBox.asNumber(stack[sp]));
+                    break;
+                case OpCode.MULTIPLY_NUMBER:
+                    sp--;
+                    stack[sp-1]=NanBox.number(NanBox.asNumber(stack[sp-1])*NanBox.asNumber(stack[sp]));
+                    break;
+                case OpCode.DIVIDE_NUMBER:
+                    sp--;
+                    stack[sp-1]=NanBox.number(NanBox.asNumber(stack[sp-1])/NanBox.asNumber(stack[sp]));
+                    break;
+                case OpCode.NOT:
+                    stack[sp-1]=bool(!isTruthy(stack[sp-1]));
+                    break;
+                case OpCode.NEGATE:
+                    if (!NanBox.isNumber(stack[sp-1])){
+                        throw new RuntimeError(chunk.lines[ip-1],"operand must be a number.");
+                    }
+                    stack[sp-1]=NanBox.number(-NanBox.asNumber(stack[sp-1]));
+                    break;
+                case OpCode.PRINT:
+                    sp--;
+                    out.print(NanBox.decode(stack[sp],references[sp]));
+                    break;
+                case OpCode.JUMP:
+                    ip=readInt(code,ip);
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    ip=isTruthy(stack[sp-1]) ? ip+4 : readInt(code,ip);
+                    break;
+                case OpCode.POP_JUMP_IF_FALSE:
+                    ip=isTruthy(stack[--sp]) ? ip+4 : readInt(code,ip);
+                    break;
+                case OpCode.POP_JUMP_IF_TRUE:
+                    ip=isTruthy(stack[--sp]) ? readInt(code,ip) : ip+4;
+                    break;
+                case OpCode.RETURN:
+                    return;
+                default:
+                    throw new IllegalStateException("Unknown opcode "+instruction);
+            }
+        }
+    }
+
+    private static long bool(boolean value){
+        return value ? NanBox.TRUE : NanBox.FALSE;
+    }
+
+    // nil and false are falsy, as in Interpreter.isTruthy
+    private static boolean isTruthy(long value){
+        return value!=NanBox.NIL && value!=NanBox.FALSE;
+    }
+
+    // Interpreter.isEqual on encoded values: numbers compare by bits as
+    // Double.equals does, references by equals
+    private static boolean isEqual(long[] stack,Object[] references,int a,int b){
+        if (stack[a]!=stack[b]){
+            return false;
+        }
+        return stack[a]!=NanBox.REFERENCE || references[a].equals(references[b]);
+    }
+
+    private static int readShort(byte[] code,int ip){
+        return ((code[ip]&0xff)<<8)|(code[ip+1]&0xff);
+    }
+
+    private static int readInt(byte[] code,int ip){
+        return (readShort(code,ip)<<16)|readShort(code,ip+2);
+    }
+
+    private void growGlobals(int symbol){
+        int length=globals.length;
+        globals=Arrays.copyOf(globals,Math.max(symbol+1,length*2));
+        globalReferences=Arrays.copyOf(globalReferences,globals.length);
+        Arrays.fill(globals,length,globals.length,NanBox.UNDEFINED);
+    }
+
+    private RuntimeError undefined(Chunk chunk,int ip,int symbol){
+        return new RuntimeError(chunk.lines[ip],"Undefined variable '"+symbols.name(symbol)+"'.");
+    }
+
+    // the stack operand of a *_CONSTANT instruction
+    private static double leftNumber(Chunk chunk,int ip,long left){
+        if (!NanBox.isNumber(left)){
+            throw new RuntimeError(chunk.lines[ip-1],"Operand must be number");
+        }
+        return NanBox.asNumber(left);
+    }
+
+    // the operands of a numeric binary instruction
+    private static void checkNumbers(Chunk chunk,int ip,long left,long right){
+        if (!NanBox.isNumber(left) || !NanBox.isNumber(right)){
+            throw new RuntimeError(chunk.lines[ip-1],"Operand must be number");
+        }
+    }
+}
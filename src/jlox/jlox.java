@@ -3,36 +3,117 @@ package jlox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
 
+// Command line front end; the work happens in a LoxContext.
 public class jlox {
-    private static final Interpreter interpreter=new Interpreter();
-    static boolean hadError=false;
-    static boolean hadRuntimeError = false;
     public static void main(String[] args)throws  IOException {
-        if (args.length>1){
-            System.out.println("Usage: lox [script]");
-        }else if (args.length==1){
-            runFile(args[0]);
+        LoxContext.Options options=new LoxContext.Options();
+        OutputSink.FlushPolicy flush=null;
+        boolean useVm=false;
+        boolean profile=false;
+        String daemon=null;
+        int first=0;
+        while (first<args.length && args[first].startsWith("--")){
+            if (args[first].equals("--vm")){
+                useVm=true;
+            }else if (args[first].equals("--optimize")){
+                options.optimize(true);
+            }else if (args[first].equals("--closures")){
+                options.closures(true);
+            }else if (args[first].equals("--jit")){
+                options.jit(0);
+            }else if (args[first].startsWith("--jit=")){
+                options.jit(jitThreshold(args[first].substring("--jit=".length())));
+            }else if (args[first].equals("--profile")){
+                profile=true;
+            }else if (args[first].startsWith("--cache=")){
+                options.cache(Paths.get(args[first].substring("--cache=".length())));
+            }else if (args[first].equals("--daemon")){
+                daemon=Daemon.DEFAULT_ADDRESS;
+            }else if (args[first].startsWith("--daemon=")){
+                daemon=args[first].substring("--daemon=".length());
+            }else if (args[first].startsWith("--diagnostics=")){
+                options.diagnostics(diagnosticsFormat(args[first].substring("--diagnostics=".length())));
+            }else if (args[first].startsWith("--flush=")){
+                flush=flushPolicy(args[first].substring("--flush=".length()));
+            }else {
+                System.out.println("Unknown option "+args[first]);
+                System.exit(64);
+            }
+            first++;
+        }
+        if (flush==null){
+            flush=args.length-first==1 || daemon!=null ? OutputSink.FlushPolicy.SIZE : OutputSink.FlushPolicy.NEWLINE;
+        }
+        if (profile && useVm){
+            System.out.println("--profile only works with the tree-walking interpreter");
+            System.exit(64);
+        }
+        if (options.jit>=0 && (profile || useVm)){
+            System.out.println("--jit only works with the tree-walking interpreter, without --profile");
+            System.exit(64);
+        }
+        if (options.closures && (profile || useVm || options.jit>=0)){
+            System.out.println("--closures can't be combined with --vm, --profile or --jit");
+            System.exit(64);
+        }
+        options.vm(useVm).profile(profile).flush(flush);
+        if (daemon!=null){
+            if (!new Daemon(Daemon.address(daemon),options).serve()){
+                System.exit(69);
+            }
+            return;
+        }
+        LoxContext context=new LoxContext(System.out,System.err,options);
+        if (args.length-first>1){
+            System.out.println("Usage: lox [--vm] [--optimize] [--profile] [--closures] [--jit[=runs]] [--flush=exit|size|line] [--cache=dir] [--diagnostics=text|json] [--daemon[=socket|port]] [script]");
+        }else if (args.length-first==1){
+            int code=context.runFile(Paths.get(args[first]));
+            if (code!=0){
+                System.exit(code);
+            }
         }else {
-            runPrompt();
+            runPrompt(context);
+        }
+    }
+
+    private static OutputSink.FlushPolicy flushPolicy(String name){
+        switch (name){
+            case "exit": return OutputSink.FlushPolicy.EXIT;
+            case "size": return OutputSink.FlushPolicy.SIZE;
+            case "line": return OutputSink.FlushPolicy.NEWLINE;
         }
+        System.out.println("Unknown flush policy "+name);
+        System.exit(64);
+        return null;
     }
-    private static void runFile(String path)throws IOException {
-        byte[] bytes= Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if(hadError){
-                System.exit(65);
+
+    private static int jitThreshold(String runs){
+        try {
+            int threshold=Integer.parseInt(runs);
+            if (threshold>=0){
+                return threshold;
+            }
+        }catch (NumberFormatException e){
+            // reported below
         }
-        if (hadRuntimeError) {
-            System.exit(70);
+        System.out.println("--jit needs a number of runs, not "+runs);
+        System.exit(64);
+        return -1;
+    }
+
+    private static Diagnostics.Format diagnosticsFormat(String name){
+        switch (name){
+            case "text": return Diagnostics.Format.TEXT;
+            case "json": return Diagnostics.Format.JSON;
         }
+        System.out.println("Unknown diagnostics format "+name);
+        System.exit(64);
+        return null;
     }
 
-    private static void runPrompt()throws IOException{
+    private static void runPrompt(LoxContext context)throws IOException{
         InputStreamReader input=new InputStreamReader(System.in);
         BufferedReader reader=new BufferedReader(input);
         for (;;){
@@ -41,49 +122,8 @@ public class jlox {
             if(line==null){
                 break;
             }
-            run(line);
-            hadError=false;
+            context.runLine(line);
         }
+        context.finish();
     }
-
-    private static void run(String source){
-        Scanner scanner=new Scanner(source);
-        List<Token> tokens=scanner.scanTokens();
-       Parser parser=new Parser(tokens);
-     //  Expr expression=parser.parse();
-        List<Stmt> statements=parser.parse();
-        if (hadError){
-            return;
-        }
-//        System.out.println(new Astprinter().print(expression));
-//        for (Token token:tokens){
-//            System.out.println("Type:"+token.type+" lexeme"+token.lexeme+" literal:"+token.literal+" line:"+token.line);
-//        }
-        interpreter.interpret(statements);
-
-    }
-
-    static void error(int line,String message){
-        report(line,"",message);
-    }
-    private static void report(int line,String where,String message){
-            System.err.println("[line " + line + "] Error" + where + ": " + message);
-            hadError=true;
-    }
-
-    static void error(Token token,String message){
-        if (token.type==Tokentype.EOF){
-            report(token.line," at end ",message);
-        }else{
-            report(token.line," at "+token.lexeme+"'",message);
-        }
-
-    }
-
-    static void runtimeError(RuntimeError error){
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
-    }
-
 }
-
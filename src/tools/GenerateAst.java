@@ -14,19 +14,23 @@ public class GenerateAst {
         String outputDir=args[0];
         System.out.println(outputDir);
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
+                "Assign   : Token name, Expr value ; int depth = -1, int slot = -1",
+                "Binary   : Expr left, Token operator, Expr right ; Specialization specialization = Specialization.UNINITIALIZED",
                 "Grouping : Expr expression",
+                "Invariant: Expr expression ; Object value, boolean cached",
                 "Literal  : Object value",
+                "Logical  : Expr left, Token operator, Expr right",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name ; int depth = -1, int slot = -1"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements ; int slots",
                 "Expression : Expr expression",
+                "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
-                "Var        : Token name,Expr initializer"
+                "Var        : Token name, Expr initializer ; int slot = -1",
+                "While      : Expr condition, Stmt body ; List<Expr.Invariant> invariants"
         ));
 
 
@@ -39,11 +43,16 @@ public class GenerateAst {
         writer.println("import java.util.List;");
         writer.println();
         writer.println("abstract class " + baseName + " {");
+        // lets AstCache notice cached trees written for a different node layout
+        writer.println("  static final int SHAPE = " + String.join("|", types).hashCode() + ";");
+        writer.println();
         defineVisitor(writer,baseName,types);
         for (String  type:types){
             String className=type.split(":")[0].trim();
-            String fields=type.split(":")[1].trim();
-            defineType(writer,baseName,className,fields);
+            String[] parts=type.split(":")[1].split(";");
+            String fields=parts[0].trim();
+            String annotations=parts.length>1 ? parts[1].trim() : null;
+            defineType(writer,baseName,className,fields,annotations);
 
         }
         // The base accept() method.
@@ -64,7 +73,8 @@ public class GenerateAst {
         writer.println("}");
     }
 
-    private static void defineType(PrintWriter writer, String baseName,String className, String fieldList){
+    // Fields after ';' are mutable annotations filled in by later passes (e.g. the Resolver).
+    private static void defineType(PrintWriter writer, String baseName,String className, String fieldList,String annotationList){
         writer.println(" static class "+className+" extends "+baseName+"{");
 
         writer.println("    "+className+"("+fieldList+") {");
@@ -89,6 +99,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if (annotationList!=null){
+            for (String annotation:annotationList.split(", ")){
+                writer.println("    " + annotation + ";");
+            }
+        }
 
         writer.println("  }");
     }
@@ -0,0 +1,30 @@
+#!/bin/sh
+# Damages a cached entry for test/cache/script.lox at every offset after the
+# header in turn, writing a huge varint there, and fails unless each run
+# still prints what an uncached run prints. Build first with `mvn package`.
+cd "$(dirname "$0")/.." || exit 1
+JAR=${JAR:-core/target/jlox-1.0-SNAPSHOT.jar}
+SCRIPT=test/cache/script.lox
+CACHE=$(mktemp -d) || exit 1
+trap 'rm -rf "$CACHE"' EXIT
+expected=$(java -jar "$JAR" "$SCRIPT" 2>&1)
+java -jar "$JAR" --cache="$CACHE" "$SCRIPT" >/dev/null 2>&1
+entry=$(ls "$CACHE"/*.ast)
+cp "$entry" "$CACHE/good"
+size=$(wc -c <"$entry")
+failed=0
+# the header is five ints, then the body length and CRC
+offset=20
+while [ "$offset" -lt "$size" ]; do
+    cp "$CACHE/good" "$entry"
+    # 0x7ffffff0 as a varint
+    printf '\360\377\377\377\007' | dd of="$entry" bs=1 seek="$offset" conv=notrunc 2>/dev/null
+    actual=$(java -jar "$JAR" --cache="$CACHE" "$SCRIPT" 2>&1 | grep -v '^\[cache\]')
+    if [ "$actual" != "$expected" ]; then
+        echo "FAIL damaged at offset $offset"
+        failed=1
+    fi
+    offset=$((offset+1))
+done
+[ $failed = 0 ] && echo "ok"
+exit $failed
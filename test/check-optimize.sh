@@ -0,0 +1,16 @@
+#!/bin/sh
+# Runs every script in test/optimize with and without --optimize and fails
+# if the exit status or stdout differ. Build first with `mvn package`.
+cd "$(dirname "$0")/.." || exit 1
+JAR=${JAR:-core/target/jlox-1.0-SNAPSHOT.jar}
+failed=0
+for script in test/optimize/*.lox; do
+    plain=$(java -jar "$JAR" "$script" 2>/dev/null); plainStatus=$?
+    optimized=$(java -jar "$JAR" --optimize "$script" 2>/dev/null); optimizedStatus=$?
+    if [ "$plainStatus" != "$optimizedStatus" ] || [ "$plain" != "$optimized" ]; then
+        echo "FAIL $script: exit $plainStatus vs $optimizedStatus with --optimize"
+        failed=1
+    fi
+done
+[ $failed = 0 ] && echo "ok"
+exit $failed